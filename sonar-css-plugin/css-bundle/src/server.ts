@@ -1,8 +1,11 @@
 import { Server } from "http";
 import * as express from "express";
+import * as net from "net";
 import { AddressInfo } from "net";
 import * as stylelint from "stylelint";
 import * as fs from "fs";
+import * as path from "path";
+import * as crypto from "crypto";
 import * as bodyParser from "body-parser";
 
 // for testing purposes
@@ -10,6 +13,16 @@ let log = console.log;
 let logError = console.error;
 
 const MAX_REQUEST_SIZE = "50mb";
+const BATCH_ENDPOINT = "/analyze-batch";
+const CONFIG_ENDPOINT = "/config";
+const COMPACT_ISSUES_FORMAT = "compact-issues-2";
+// beyond this number of strings, new strings are sent without being added to the string table
+const MAX_STRING_TABLE_SIZE = 10000;
+
+// stylelint options of registered configurations, by handle
+const registeredConfigs = new Map<string, ConfigOptions>();
+// latest handle of each configuration file, only the latest configuration of a file is kept
+const configHandles = new Map<string, string>();
 
 export function setLogHandlersForTests(
   logHandler: typeof console.log,
@@ -25,6 +38,8 @@ export function start(port = 0, host = "127.0.0.1"): Promise<Server> {
     const app = express();
     app.use(bodyParser.json({ limit: MAX_REQUEST_SIZE }));
     app.post("/analyze", analyzeWithStylelint);
+    app.post(BATCH_ENDPOINT, analyzeBatchWithStylelint);
+    app.post(CONFIG_ENDPOINT, registerConfigForStylelint);
     app.get("/status", (_: express.Request, resp: express.Response) =>
       resp.send("OK!")
     );
@@ -36,15 +51,19 @@ export function start(port = 0, host = "127.0.0.1"): Promise<Server> {
       });
     });
 
-    // every time something is wrong we log error and send empty response (with 0 issues)
+    // every time something is wrong we log error and send null issues, so that the failure is not taken for 0 issues,
+    // an empty configuration handle means that the configuration is not registered
     // it's important to keep this call last in configuring "app"
     app.use(
       (
         error: any,
-        _req: express.Request,
+        request: express.Request,
         response: express.Response,
         _next: any
-      ) => processError(error, response)
+      ) =>
+        request.path === BATCH_ENDPOINT || request.path === CONFIG_ENDPOINT
+          ? processBatchError(error, response)
+          : processError(error, response)
     );
 
     const server = app.listen(port, host, () => {
@@ -57,29 +76,350 @@ export function start(port = 0, host = "127.0.0.1"): Promise<Server> {
   });
 }
 
+/**
+ * Starts a server receiving requests as length-prefixed frames over persistent connections.
+ * A frame is the length of its content on 4 bytes (big-endian) followed by the content.
+ * A request is made of two frames, the endpoint and the JSON body, both encoded in UTF-8.
+ * A response is made of any number of frames, ended by an empty frame.
+ * When a socket path is given, the server listens on this Unix domain socket instead of the port.
+ */
+export function startFramed(
+  port = 0,
+  host = "127.0.0.1",
+  socketPath?: string
+): Promise<net.Server> {
+  return new Promise(resolve => {
+    const address = socketPath ? `socket ${socketPath}` : `port ${port}`;
+    log(`DEBUG starting stylelint-bridge framed server at ${address}`);
+    const sockets = new Set<net.Socket>();
+    const server = net.createServer(socket => {
+      sockets.add(socket);
+      socket.on("close", () => sockets.delete(socket));
+      socket.on("error", error => logError(error));
+      const connection: FramedConnection = { socket };
+      // requests of a connection are answered in the order they are received
+      let answered = Promise.resolve();
+      let frames: string[] = [];
+      socket.on(
+        "data",
+        frameReader(frame => {
+          frames.push(frame);
+          if (frames.length === 2) {
+            const [endpoint, body] = frames;
+            frames = [];
+            answered = answered.then(() =>
+              answerFramedRequest(endpoint, body, connection, () => {
+                console.log("DEBUG stylelint-bridge server will shutdown");
+                server.close();
+                sockets.forEach(openSocket => openSocket.end());
+              })
+            );
+          }
+        })
+      );
+    });
+    const onListening = () => {
+      const listening = socketPath
+        ? `socket ${socketPath}`
+        : `port ${(server.address() as AddressInfo).port}`;
+      log(`DEBUG stylelint-bridge framed server is running at ${listening}`);
+      resolve(server);
+    };
+    if (socketPath) {
+      server.listen(socketPath, onListening);
+    } else {
+      server.listen(port, host, onListening);
+    }
+  });
+}
+
+function frameReader(onFrame: (frame: string) => void) {
+  let buffer = Buffer.alloc(0);
+  return (data: Buffer) => {
+    buffer = buffer.length === 0 ? data : Buffer.concat([buffer, data]);
+    while (buffer.length >= 4 && buffer.length >= 4 + buffer.readUInt32BE(0)) {
+      const end = 4 + buffer.readUInt32BE(0);
+      onFrame(buffer.toString("utf8", 4, end));
+      buffer = buffer.slice(end);
+    }
+  };
+}
+
+function writeFrame(socket: net.Socket, content: string | Buffer) {
+  const payload =
+    typeof content === "string" ? Buffer.from(content, "utf8") : content;
+  const header = Buffer.alloc(4);
+  header.writeUInt32BE(payload.length, 0);
+  socket.write(Buffer.concat([header, payload]));
+}
+
+// as with HTTP, every time something is wrong we log error and answer with null issues
+function answerFramedRequest(
+  endpoint: string,
+  body: string,
+  connection: FramedConnection,
+  close: () => void
+): Promise<void> {
+  const { socket } = connection;
+  let answer: Promise<void>;
+  try {
+    switch (endpoint) {
+      case "status":
+        writeFrame(socket, "OK!");
+        answer = Promise.resolve();
+        break;
+      case "format":
+        // answering with the format accepts it, an empty response keeps JSON
+        if (body === COMPACT_ISSUES_FORMAT) {
+          connection.strings = new Map();
+          writeFrame(socket, COMPACT_ISSUES_FORMAT);
+        }
+        answer = Promise.resolve();
+        break;
+      case "analyze":
+        answer = analyzeCatchingErrors(JSON.parse(body) as AnalysisInput).then(
+          issues => writeFrame(socket, encodeIssues(issues, connection))
+        );
+        break;
+      case "analyze-batch":
+        answer = analyzeFramedBatch(JSON.parse(body), connection);
+        break;
+      case "config":
+        writeFrame(socket, registerConfig(JSON.parse(body).configFile));
+        answer = Promise.resolve();
+        break;
+      case "close":
+        answer = Promise.resolve();
+        break;
+      default:
+        answer = Promise.reject(`Unknown endpoint ${endpoint}`);
+    }
+  } catch (error) {
+    answer = Promise.reject(error);
+  }
+  return answer
+    .catch(error => {
+      logError(error);
+      if (endpoint === "analyze") {
+        writeFrame(socket, encodeIssues(null, connection));
+      }
+    })
+    .then(() => {
+      writeFrame(socket, "");
+      if (endpoint === "close") {
+        close();
+      }
+    });
+}
+
+// issues are sent as one frame per file, as soon as the file is analyzed
+function analyzeFramedBatch(parsedRequest: any, connection: FramedConnection) {
+  if (!Array.isArray(parsedRequest)) {
+    return Promise.reject("Batch analysis request is not an array");
+  }
+  const analyses = (parsedRequest as AnalysisInput[]).map(input =>
+    analyzeCatchingErrors(input).then(issues =>
+      writeFrame(
+        connection.socket,
+        encodeFileIssues({ filePath: input.filePath, issues }, connection)
+      )
+    )
+  );
+  return Promise.all(analyses).then(() => undefined);
+}
+
+function encodeIssues(issues: Issue[] | null, connection: FramedConnection) {
+  const { strings } = connection;
+  if (!strings) {
+    return JSON.stringify(issues);
+  }
+  const bytes: number[] = [];
+  writeIssues(bytes, issues, strings);
+  return Buffer.from(bytes);
+}
+
+function encodeFileIssues(
+  fileIssues: FileIssues,
+  connection: FramedConnection
+) {
+  const { strings } = connection;
+  if (!strings) {
+    return JSON.stringify(fileIssues) + "\n";
+  }
+  const bytes: number[] = [];
+  // file paths are not repeated, they are not added to the string table
+  writeString(bytes, fileIssues.filePath);
+  writeIssues(bytes, fileIssues.issues, strings);
+  return Buffer.from(bytes);
+}
+
+/**
+ * Compact format, read by CompactIssueReader on Java side: numbers are unsigned varints, strings are a tag
+ * followed, unless it's a reference, by their length in bytes and their UTF-8 bytes. The tag is 0 for a string
+ * sent once, 1 for a string added to the string table of the connection, n + 2 to reference the n-th string.
+ * Issues are their number plus one, 0 meaning that the analysis failed.
+ */
+function writeIssues(
+  bytes: number[],
+  issues: Issue[] | null,
+  strings: Map<string, number>
+) {
+  if (issues === null) {
+    writeVarint(bytes, 0);
+    return;
+  }
+  writeVarint(bytes, issues.length + 1);
+  issues.forEach(issue => {
+    writeVarint(bytes, issue.line > 0 ? issue.line : 0);
+    writeString(bytes, issue.rule, strings);
+    writeString(bytes, issue.text, strings);
+  });
+}
+
+function writeString(
+  bytes: number[],
+  value: string,
+  strings?: Map<string, number>
+) {
+  const index = strings && strings.get(value);
+  if (index !== undefined) {
+    writeVarint(bytes, index + 2);
+    return;
+  }
+  if (strings && strings.size < MAX_STRING_TABLE_SIZE) {
+    strings.set(value, strings.size);
+    writeVarint(bytes, 1);
+  } else {
+    writeVarint(bytes, 0);
+  }
+  const encoded = Buffer.from(value, "utf8");
+  writeVarint(bytes, encoded.length);
+  encoded.forEach(byte => bytes.push(byte));
+}
+
+function writeVarint(bytes: number[], value: number) {
+  let remaining = value;
+  while (remaining > 0x7f) {
+    bytes.push((remaining & 0x7f) | 0x80);
+    remaining >>>= 7;
+  }
+  bytes.push(remaining);
+}
+
+// answers with the handle of the configuration, or with an empty response when it can't be registered
+function registerConfigForStylelint(
+  request: express.Request,
+  response: express.Response
+) {
+  try {
+    response.send(registerConfig(request.body.configFile));
+  } catch (error) {
+    logError(error);
+    response.end();
+  }
+}
+
+/**
+ * Reads the configuration file once, so that analysis requests referencing the returned handle
+ * don't have the configuration file loaded again by stylelint. The handle depends only on the path
+ * and the contents of the file: every server process returns the same handle for the same file.
+ * The configuration formerly registered for the same file is removed, requests referencing its handle
+ * have the configuration file loaded by stylelint.
+ */
+function registerConfig(configFile: string) {
+  if (typeof configFile !== "string") {
+    throw new Error("Configuration request has no configFile");
+  }
+  const content = fs.readFileSync(configFile, { encoding: "utf8" });
+  const handle = crypto
+    .createHash("sha256")
+    .update(configFile)
+    .update("\0")
+    .update(content)
+    .digest("hex");
+  registeredConfigs.set(handle, {
+    config: JSON.parse(content),
+    configBasedir: path.dirname(configFile)
+  });
+  const formerHandle = configHandles.get(configFile);
+  if (formerHandle !== undefined && formerHandle !== handle) {
+    registeredConfigs.delete(formerHandle);
+  }
+  configHandles.set(configFile, handle);
+  log(`DEBUG registered configuration ${configFile} as ${handle}`);
+  return handle;
+}
+
 function analyzeWithStylelint(
   request: express.Request,
   response: express.Response
 ) {
   const parsedRequest = request.body as AnalysisInput;
-  const { filePath, fileContent, configFile } = parsedRequest;
-  const code =
-    typeof fileContent == "string" ? fileContent : getFileContent(filePath);
-  const options = {
-    code,
-    codeFilename: filePath,
-    configFile
-  };
-
-  stylelint
-    .lint(options)
-    .then(result => response.json(toIssues(result.results, filePath)))
+  analyze(parsedRequest)
+    .then(issues => response.json(issues))
     .catch(error => processError(error, response));
 }
 
+// issues are streamed as one JSON line per file, as soon as the file is analyzed
+function analyzeBatchWithStylelint(
+  request: express.Request,
+  response: express.Response
+) {
+  const parsedRequest = request.body as AnalysisInput[];
+  if (!Array.isArray(parsedRequest)) {
+    processBatchError("Batch analysis request is not an array", response);
+    return;
+  }
+  response.type("application/x-ndjson");
+  const analyses = parsedRequest.map(input => analyzeAndWrite(input, response));
+  Promise.all(analyses).then(() => response.end());
+}
+
+function analyzeAndWrite(input: AnalysisInput, response: express.Response) {
+  return analyzeCatchingErrors(input).then(issues => {
+    const fileIssues: FileIssues = { filePath: input.filePath, issues };
+    response.write(JSON.stringify(fileIssues) + "\n");
+  });
+}
+
+function analyze(input: AnalysisInput): Promise<Issue[]> {
+  const { filePath, fileContent, fileEncoding, configFile } = input;
+  try {
+    const code =
+      typeof fileContent == "string"
+        ? fileContent
+        : getFileContent(filePath, fileEncoding);
+    const registeredConfig =
+      input.configHandle && registeredConfigs.get(input.configHandle);
+    // without registered configuration, stylelint loads the configuration file
+    const configOptions = registeredConfig || { configFile };
+    return stylelint
+      .lint({ code, codeFilename: filePath, ...configOptions })
+      .then(result => toIssues(result.results, filePath));
+  } catch (error) {
+    return Promise.reject(error);
+  }
+}
+
+// in batch analysis, a failure on one file should not prevent reporting issues on the other ones,
+// null issues tell the failure apart from a file without issues
+function analyzeCatchingErrors(
+  input: AnalysisInput
+): Promise<Issue[] | null> {
+  return analyze(input).catch(error => {
+    logError(error);
+    return null;
+  });
+}
+
 function processError(error: any, response: express.Response) {
   logError(error);
-  response.json([]);
+  response.json(null);
+}
+
+function processBatchError(error: any, response: express.Response) {
+  logError(error);
+  response.end();
 }
 
 function toIssues(results: stylelint.LintResult[], filePath: string): Issue[] {
@@ -104,8 +444,12 @@ function toIssues(results: stylelint.LintResult[], filePath: string): Issue[] {
   return analysisResponse;
 }
 
-function getFileContent(filePath: string) {
-  const fileContent = fs.readFileSync(filePath, { encoding: "utf8" });
+// encoding is a Node.js Buffer encoding, UTF-8 when not set
+function getFileContent(filePath: string, encoding = "utf8") {
+  if (!Buffer.isEncoding(encoding)) {
+    throw new Error(`Unsupported encoding ${encoding} for file ${filePath}`);
+  }
+  const fileContent = fs.readFileSync(filePath, { encoding });
   // strip BOM
   if (fileContent.charCodeAt(0) === 0xfeff) {
     return fileContent.slice(1);
@@ -116,7 +460,14 @@ function getFileContent(filePath: string) {
 export interface AnalysisInput {
   filePath: string;
   fileContent: string | undefined;
+  fileEncoding: string | undefined;
   configFile: string;
+  configHandle: string | undefined;
+}
+
+interface ConfigOptions {
+  config: any;
+  configBasedir: string;
 }
 
 export interface Issue {
@@ -124,3 +475,15 @@ export interface Issue {
   rule: string;
   text: string;
 }
+
+interface FramedConnection {
+  socket: net.Socket;
+  // strings already sent on the connection, set when issues are sent in compact format
+  strings?: Map<string, number>;
+}
+
+export interface FileIssues {
+  filePath: string;
+  // null when the analysis of the file failed
+  issues: Issue[] | null;
+}
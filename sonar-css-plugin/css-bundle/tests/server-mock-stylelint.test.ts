@@ -42,10 +42,10 @@ describe("server", () => {
     );
   });
 
-  it("should not return issues when failed promise returned", async () => {
+  it("should return null issues when failed promise returned", async () => {
     (stylelint.lint as any).mockRejectedValue("some reason");
     const response = await postToServer(request, "/analyze", server);
-    expect(JSON.parse(response)).toEqual([]);
+    expect(JSON.parse(response)).toBeNull();
     expect(errorSpy).toHaveBeenCalledWith("some reason");
   });
 });
@@ -1,10 +1,13 @@
-import { start, setLogHandlersForTests } from "../src/server";
+import { start, startFramed, setLogHandlersForTests } from "../src/server";
 import * as http from "http";
 import { Server } from "http";
 import { promisify } from "util";
+import * as net from "net";
 import { AddressInfo } from "net";
-import { postToServer } from "./utils";
+import { postToServer, requestFramed, requestsFramed } from "./utils";
 import * as path from "path";
+import * as os from "os";
+import * as fs from "fs";
 
 const configFile = path.join(__dirname, "fixtures", "stylelintconfig.json");
 
@@ -101,6 +104,123 @@ describe("server", () => {
     ]);
   });
 
+  it("should read file with encoding from the request", async () => {
+    const response = await post(
+      JSON.stringify({
+        filePath: path.join(__dirname, "fixtures", "file-utf16le.css"),
+        fileEncoding: "utf16le",
+        configFile
+      }),
+      "/analyze"
+    );
+    expect(JSON.parse(response)).toEqual([
+      {
+        line: 1,
+        rule: "block-no-empty",
+        text: "Unexpected empty block (block-no-empty)"
+      }
+    ]);
+  });
+
+  it("should return null issues when encoding is unknown", async () => {
+    const response = await post(
+      JSON.stringify({
+        filePath: path.join(__dirname, "fixtures", "file.css"),
+        fileEncoding: "klingon",
+        configFile
+      }),
+      "/analyze"
+    );
+    expect(JSON.parse(response)).toBeNull();
+    expect(errorSpy).toHaveBeenCalledWith(
+      expect.objectContaining({
+        message: expect.stringContaining("Unsupported encoding klingon")
+      })
+    );
+  });
+
+  it("should analyze with registered configuration", async () => {
+    const handle = await post(JSON.stringify({ configFile }), "/config");
+    expect(handle).toMatch(/^[0-9a-f]{64}$/);
+    expect(await post(JSON.stringify({ configFile }), "/config")).toEqual(
+      handle
+    );
+
+    // configuration file is not read when the handle is known
+    const response = await post(
+      JSON.stringify({
+        filePath: path.join(__dirname, "fixtures", "file.css"),
+        configFile: "missing-config.json",
+        configHandle: handle
+      }),
+      "/analyze"
+    );
+    expect(JSON.parse(response)).toEqual([
+      {
+        line: 1,
+        rule: "block-no-empty",
+        text: "Unexpected empty block (block-no-empty)"
+      }
+    ]);
+  });
+
+  it("should keep only the latest configuration of a file", async () => {
+    const tmpConfigFile = path.join(
+      fs.mkdtempSync(path.join(os.tmpdir(), "css-bundle-")),
+      "stylelintconfig.json"
+    );
+    fs.writeFileSync(tmpConfigFile, '{"rules":{"block-no-empty":true}}');
+    const formerHandle = await post(
+      JSON.stringify({ configFile: tmpConfigFile }),
+      "/config"
+    );
+    fs.writeFileSync(
+      tmpConfigFile,
+      '{"rules":{"block-no-empty":true,"color-no-invalid-hex":true}}'
+    );
+    const handle = await post(
+      JSON.stringify({ configFile: tmpConfigFile }),
+      "/config"
+    );
+    expect(handle).not.toEqual(formerHandle);
+
+    const analyzeWith = async (configHandle: string) =>
+      JSON.parse(
+        await post(
+          JSON.stringify({
+            filePath: path.join(__dirname, "fixtures", "file.css"),
+            configFile: "missing-config.json",
+            configHandle
+          }),
+          "/analyze"
+        )
+      );
+    expect(await analyzeWith(handle)).toHaveLength(1);
+    // the missing configuration file is loaded, which fails
+    expect(await analyzeWith(formerHandle)).toBeNull();
+  });
+
+  it("should use configuration file when handle is unknown", async () => {
+    const response = await post(
+      JSON.stringify({
+        filePath: path.join(__dirname, "fixtures", "file.css"),
+        configFile,
+        configHandle: "unknown"
+      }),
+      "/analyze"
+    );
+    expect(JSON.parse(response)).toHaveLength(1);
+  });
+
+  it("should send empty response when configuration can't be registered", async () => {
+    expect(await post("{}", "/config")).toEqual("");
+    expect(errorSpy).toHaveBeenCalledWith(
+      new Error("Configuration request has no configFile")
+    );
+    // rejected by the JSON body parser
+    expect(await post("{", "/config")).toEqual("");
+  });
+
   it("should respond OK! when started", done => {
     const req = http.request(
       {
@@ -123,9 +243,9 @@ describe("server", () => {
     req.end();
   });
 
-  it("should return empty list of issues when request not json", async () => {
+  it("should return null issues when request not json", async () => {
     const response = await post("invalid json", "/analyze");
-    expect(JSON.parse(response)).toEqual([]);
+    expect(JSON.parse(response)).toBeNull();
     expect(errorSpy).toHaveBeenCalledWith(
       expect.objectContaining({
         message: expect.stringContaining(
@@ -135,9 +255,9 @@ describe("server", () => {
     );
   });
 
-  it("should return empty list of issues when invalid request", async () => {
+  it("should return null issues when invalid request", async () => {
     const response = await post("{}", "/analyze");
-    expect(JSON.parse(response)).toEqual([]);
+    expect(JSON.parse(response)).toBeNull();
     expect(errorSpy).toHaveBeenCalledWith(
       expect.objectContaining({
         message: expect.stringContaining(
@@ -163,6 +283,72 @@ describe("server", () => {
     ]);
   });
 
+  it("should stream issues of batch analysis request", async () => {
+    const cssFile = path.join(__dirname, "fixtures", "file.css");
+    const phpFile = path.join(__dirname, "fixtures", "file.php");
+    const request = JSON.stringify([
+      { filePath: cssFile, configFile },
+      {
+        filePath: phpFile,
+        fileContent: "<style>\n\n a { }</style>",
+        configFile
+      }
+    ]);
+    const response = await post(request, "/analyze-batch");
+    const fileIssues = parseLines(response);
+    expect(fileIssues).toHaveLength(2);
+    expect(fileIssues).toContainEqual({
+      filePath: cssFile,
+      issues: [
+        {
+          line: 1,
+          rule: "block-no-empty",
+          text: "Unexpected empty block (block-no-empty)"
+        }
+      ]
+    });
+    expect(fileIssues).toContainEqual({
+      filePath: phpFile,
+      issues: [
+        {
+          line: 3,
+          rule: "block-no-empty",
+          text: "Unexpected empty block (block-no-empty)"
+        }
+      ]
+    });
+  });
+
+  it("should return null issues for failing file in batch", async () => {
+    const cssFile = path.join(__dirname, "fixtures", "file.css");
+    const missingFile = path.join(__dirname, "fixtures", "missing.css");
+    const request = JSON.stringify([
+      { filePath: missingFile, configFile },
+      { filePath: cssFile, configFile }
+    ]);
+    const response = await post(request, "/analyze-batch");
+    const fileIssues = parseLines(response);
+    expect(fileIssues).toHaveLength(2);
+    expect(fileIssues).toContainEqual({ filePath: missingFile, issues: null });
+    expect(errorSpy).toHaveBeenCalledWith(
+      expect.objectContaining({
+        message: expect.stringContaining("no such file or directory")
+      })
+    );
+  });
+
+  it("should return empty stream when invalid batch request", async () => {
+    expect(await post("invalid json", "/analyze-batch")).toEqual("");
+    expect(await post("{}", "/analyze-batch")).toEqual("");
+  });
+
+  function parseLines(response: string) {
+    return response
+      .split("\n")
+      .filter(line => line.length > 0)
+      .map(line => JSON.parse(line));
+  }
+
   function post(data: string, endpoint: string): Promise<string> {
     return postToServer(data, endpoint, server);
   }
@@ -176,3 +362,185 @@ describe("server close", () => {
     expect(server.listening).toBeFalsy();
   });
 });
+
+describe("framed server", () => {
+  let server: net.Server;
+
+  beforeAll(async () => {
+    server = await startFramed();
+  });
+
+  it("should respond OK! when started", async () => {
+    expect(await requestFramed("status", "", server)).toEqual(["OK!"]);
+  });
+
+  it("should respond to analysis request", async () => {
+    const request = JSON.stringify({
+      filePath: path.join(__dirname, "fixtures", "file.css"),
+      configFile
+    });
+    const frames = await requestFramed("analyze", request, server);
+    expect(frames.map(frame => JSON.parse(frame))).toEqual([
+      [
+        {
+          line: 1,
+          rule: "block-no-empty",
+          text: "Unexpected empty block (block-no-empty)"
+        }
+      ]
+    ]);
+  });
+
+  it("should send issues of each file of batch in its own frame", async () => {
+    const cssFile = path.join(__dirname, "fixtures", "file.css");
+    const missingFile = path.join(__dirname, "fixtures", "missing.css");
+    const request = JSON.stringify([
+      { filePath: cssFile, configFile },
+      { filePath: missingFile, configFile }
+    ]);
+    const frames = await requestFramed("analyze-batch", request, server);
+    const fileIssues = frames.map(frame => JSON.parse(frame));
+    expect(fileIssues).toHaveLength(2);
+    expect(fileIssues).toContainEqual({ filePath: missingFile, issues: null });
+    expect(fileIssues).toContainEqual({
+      filePath: cssFile,
+      issues: [
+        {
+          line: 1,
+          rule: "block-no-empty",
+          text: "Unexpected empty block (block-no-empty)"
+        }
+      ]
+    });
+  });
+
+  it("should return null issues when request not json", async () => {
+    const frames = await requestFramed("analyze", "invalid json", server);
+    expect(frames).toEqual(["null"]);
+    expect(await requestFramed("analyze-batch", "{}", server)).toEqual([]);
+    expect(await requestFramed("unknown", "", server)).toEqual([]);
+  });
+
+  it("should send issues in compact format when negotiated", async () => {
+    const cssFile = path.join(__dirname, "fixtures", "file.css");
+    const analyzeRequest = JSON.stringify({ filePath: cssFile, configFile });
+    const batchRequest = JSON.stringify([{ filePath: cssFile, configFile }]);
+    const failingRequest = JSON.stringify({
+      filePath: path.join(__dirname, "fixtures", "missing.css"),
+      configFile
+    });
+    const [format, first, second, batch, failed] = await requestsFramed(
+      [
+        ["format", "compact-issues-2"],
+        ["analyze", analyzeRequest],
+        ["analyze", analyzeRequest],
+        ["analyze-batch", batchRequest],
+        ["analyze", failingRequest]
+      ],
+      server
+    );
+    expect(format.map(frame => frame.toString())).toEqual(["compact-issues-2"]);
+    const rule = "block-no-empty";
+    const text = "Unexpected empty block (block-no-empty)";
+    // 1 issue (number plus one) on line 1, rule and text added to the string table
+    expect(first).toEqual([
+      Buffer.concat([
+        Buffer.from([2, 1, 1, rule.length]),
+        Buffer.from(rule),
+        Buffer.from([1, text.length]),
+        Buffer.from(text)
+      ])
+    ]);
+    // rule and text referenced from the string table
+    expect(second).toEqual([Buffer.from([2, 1, 2, 3])]);
+    // file path sent once, its length being a varint
+    const pathLength = Buffer.byteLength(cssFile);
+    const pathHeader =
+      pathLength < 0x80
+        ? [0, pathLength]
+        : [0, (pathLength & 0x7f) | 0x80, pathLength >> 7];
+    expect(batch).toEqual([
+      Buffer.concat([
+        Buffer.from(pathHeader),
+        Buffer.from(cssFile),
+        Buffer.from([2, 1, 2, 3])
+      ])
+    ]);
+    // failed analysis
+    expect(failed).toEqual([Buffer.from([0])]);
+  });
+
+  it("should keep JSON for unknown format", async () => {
+    const request = JSON.stringify({
+      filePath: path.join(__dirname, "fixtures", "file.css"),
+      configFile
+    });
+    const [format, issues] = await requestsFramed(
+      [
+        ["format", "compact-issues-42"],
+        ["analyze", request]
+      ],
+      server
+    );
+    expect(format).toEqual([]);
+    expect(JSON.parse(issues[0].toString())).toHaveLength(1);
+  });
+
+  it("should register configuration", async () => {
+    const request = JSON.stringify({ configFile });
+    const [handle] = await requestFramed("config", request, server);
+    expect(handle).toMatch(/^[0-9a-f]{64}$/);
+    const analyzeRequest = JSON.stringify({
+      filePath: path.join(__dirname, "fixtures", "file.css"),
+      configFile: "missing-config.json",
+      configHandle: handle
+    });
+    const frames = await requestFramed("analyze", analyzeRequest, server);
+    expect(JSON.parse(frames[0])).toHaveLength(1);
+  });
+
+  it("should stop listening when closed", async () => {
+    expect(await requestFramed("close", "", server)).toEqual([]);
+    expect(server.listening).toBeFalsy();
+  });
+});
+
+// Node.js listens on named pipes rather than on Unix domain sockets on Windows
+const describeUnix = process.platform === "win32" ? describe.skip : describe;
+
+describeUnix("framed server on Unix domain socket", () => {
+  const socketPath = path.join(os.tmpdir(), `css-bundle-${process.pid}.sock`);
+  let server: net.Server;
+
+  beforeAll(async () => {
+    server = await startFramed(0, "127.0.0.1", socketPath);
+  });
+
+  it("should listen on socket path", async () => {
+    expect(server.address()).toEqual(socketPath);
+    expect(await requestFramed("status", "", server)).toEqual(["OK!"]);
+  });
+
+  it("should respond to analysis request", async () => {
+    const request = JSON.stringify({
+      filePath: path.join(__dirname, "fixtures", "file.css"),
+      configFile
+    });
+    const frames = await requestFramed("analyze", request, server);
+    expect(frames.map(frame => JSON.parse(frame))).toEqual([
+      [
+        {
+          line: 1,
+          rule: "block-no-empty",
+          text: "Unexpected empty block (block-no-empty)"
+        }
+      ]
+    ]);
+  });
+
+  it("should remove socket file when closed", async () => {
+    expect(await requestFramed("close", "", server)).toEqual([]);
+    await new Promise(resolve => setTimeout(resolve, 100));
+    expect(fs.existsSync(socketPath)).toBeFalsy();
+  });
+});
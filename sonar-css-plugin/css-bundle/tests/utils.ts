@@ -1,5 +1,6 @@
 import * as http from "http";
 import { Server } from "http";
+import * as net from "net";
 import { AddressInfo } from "net";
 
 export function postToServer(
@@ -34,3 +35,70 @@ export function postToServer(
     req.end();
   });
 }
+
+/**
+ * Sends a request to framed server, resolves with the frames of the response
+ */
+export function requestFramed(
+  endpoint: string,
+  body: string,
+  server: net.Server
+): Promise<string[]> {
+  return requestsFramed([[endpoint, body]], server).then(([frames]) =>
+    frames.map(frame => frame.toString("utf8"))
+  );
+}
+
+/**
+ * Sends requests, made of an endpoint and a body, on the same connection to framed server,
+ * resolves with the frames of each response
+ */
+export function requestsFramed(
+  requests: string[][],
+  server: net.Server
+): Promise<Buffer[][]> {
+  return new Promise((resolve, reject) => {
+    const responses: Buffer[][] = [];
+    let frames: Buffer[] = [];
+    let buffer = Buffer.alloc(0);
+    // address of a server listening on a Unix domain socket is the socket path
+    const address = server.address();
+    const socket = net.connect(
+      typeof address === "string"
+        ? { path: address }
+        : { port: (<AddressInfo>address).port, host: "127.0.0.1" },
+      () =>
+        requests.forEach(([endpoint, body]) =>
+          socket.write(Buffer.concat([toFrame(endpoint), toFrame(body)]))
+        )
+    );
+    socket.on("data", data => {
+      buffer = Buffer.concat([buffer, data]);
+      while (
+        buffer.length >= 4 &&
+        buffer.length >= 4 + buffer.readUInt32BE(0)
+      ) {
+        const end = 4 + buffer.readUInt32BE(0);
+        if (end === 4) {
+          responses.push(frames);
+          frames = [];
+        } else {
+          frames.push(buffer.slice(4, end));
+        }
+        buffer = buffer.slice(end);
+      }
+      if (responses.length === requests.length) {
+        socket.end();
+        resolve(responses);
+      }
+    });
+    socket.on("error", reject);
+  });
+}
+
+function toFrame(content: string) {
+  const payload = Buffer.from(content, "utf8");
+  const header = Buffer.alloc(4);
+  header.writeUInt32BE(payload.length, 0);
+  return Buffer.concat([header, payload]);
+}
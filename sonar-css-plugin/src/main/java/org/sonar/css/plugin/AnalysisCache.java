@@ -0,0 +1,361 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.sensor.SensorContext;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.css.plugin.server.CssAnalyzerBridgeServer.Issue;
+
+/**
+ * Issues found by css-bundle server, stored on disk to be reused for files whose content, name extension
+ * and linter configuration did not change since a previous analysis.
+ * Entries which were not used for some days are removed when the cache is created.
+ * In incremental mode, issues are also stored by file path, and files reported as unchanged by the scanner
+ * are looked up by path without decoding their content. As the scanner reports files unchanged against the reference
+ * branch, which is not the analysis which stored the path entry, path entries hold a fingerprint of the file bytes
+ * which has to match.
+ */
+class AnalysisCache {
+
+  private static final Logger LOG = Loggers.get(AnalysisCache.class);
+  private static final Gson GSON = new Gson();
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  // internal property to enable the cache
+  static final String CACHE_PROPERTY = "sonar.css.analysis.cache";
+  // internal property to set the cache location, the default one is in the scanner user home to be kept between analyses
+  static final String CACHE_PATH_PROPERTY = "sonar.css.analysis.cachePath";
+  // internal property to set the number of days after which unused entries are removed
+  static final String MAX_AGE_DAYS_PROPERTY = "sonar.css.analysis.cacheMaxAgeDays";
+  // internal property to restore issues of files with status SAME from the cache, implies the cache
+  static final String INCREMENTAL_PROPERTY = "sonar.css.analysis.incremental";
+  private static final String USER_HOME_PROPERTY = "sonar.userHome";
+  private static final String DEFAULT_CACHE_PATH = "css/analysis-cache";
+  private static final int DEFAULT_MAX_AGE_DAYS = 30;
+
+  private static final AnalysisCache DISABLED = new AnalysisCache(null, new byte[0], null, null);
+
+  @Nullable
+  private final Path directory;
+  private final byte[] configHash;
+  // null when not in incremental mode
+  @Nullable
+  private final Path baseDir;
+  @Nullable
+  private final FileContentCache fileContentCache;
+
+  private AnalysisCache(@Nullable Path directory, byte[] configHash, @Nullable Path baseDir, @Nullable FileContentCache fileContentCache) {
+    this.directory = directory;
+    this.configHash = configHash;
+    this.baseDir = baseDir;
+    this.fileContentCache = fileContentCache;
+  }
+
+  static AnalysisCache create(SensorContext context, File configFile, FileContentCache fileContentCache) throws IOException {
+    boolean incremental = context.config().getBoolean(INCREMENTAL_PROPERTY).orElse(false);
+    boolean enabled = incremental
+      || context.config().getBoolean(CACHE_PROPERTY).orElse(false)
+      || context.config().hasKey(CACHE_PATH_PROPERTY);
+    if (!enabled) {
+      return disabled();
+    }
+    Path directory = context.config().get(CACHE_PATH_PROPERTY)
+      .map(path -> context.fileSystem().resolvePath(path))
+      .orElseGet(() -> new File(userHome(context.config()), DEFAULT_CACHE_PATH))
+      .toPath()
+      .toAbsolutePath();
+    Files.createDirectories(directory);
+    prune(directory, context.config().getInt(MAX_AGE_DAYS_PROPERTY).orElse(DEFAULT_MAX_AGE_DAYS));
+    MessageDigest digest = newDigest();
+    // issues found by a different version of the plugin should not be reused
+    String pluginVersion = CssPlugin.class.getPackage().getImplementationVersion();
+    if (pluginVersion != null) {
+      digest.update(pluginVersion.getBytes(StandardCharsets.UTF_8));
+    }
+    digest.update(Files.readAllBytes(configFile.toPath()));
+    LOG.debug("Using CSS analysis cache at {}", directory);
+    Path baseDir = incremental ? context.fileSystem().baseDir().toPath().toAbsolutePath() : null;
+    return new AnalysisCache(directory, digest.digest(), baseDir, fileContentCache);
+  }
+
+  /**
+   * Same resolution as the scanner: property, then environment variable, then "~/.sonar"
+   */
+  private static File userHome(Configuration config) {
+    String userHome = config.get(USER_HOME_PROPERTY).orElse(System.getenv("SONAR_USER_HOME"));
+    if (userHome == null || userHome.isEmpty()) {
+      return new File(System.getProperty("user.home"), ".sonar");
+    }
+    return new File(userHome);
+  }
+
+  /**
+   * Removes the entries which were neither read nor written for {@code maxAgeDays} days, nothing is removed when not positive
+   */
+  static void prune(Path directory, int maxAgeDays) {
+    if (maxAgeDays <= 0) {
+      return;
+    }
+    long oldest = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays);
+    int removed = 0;
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+      for (Path entry : entries) {
+        if (Files.isRegularFile(entry) && Files.getLastModifiedTime(entry).toMillis() < oldest) {
+          Files.deleteIfExists(entry);
+          removed++;
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to remove old entries of CSS analysis cache at " + directory, e);
+    }
+    if (removed > 0) {
+      LOG.debug("Removed {} entries unused for {} days from CSS analysis cache", removed, maxAgeDays);
+    }
+  }
+
+  static AnalysisCache disabled() {
+    return DISABLED;
+  }
+
+  boolean isEnabled() {
+    return directory != null;
+  }
+
+  /**
+   * @return null when the cache is disabled
+   */
+  @Nullable
+  String key(InputFile inputFile) throws IOException {
+    if (directory == null || fileContentCache == null) {
+      return null;
+    }
+    if (baseDir != null && isLookedUpByPath(inputFile)) {
+      return pathKey(baseDir, inputFile);
+    }
+    return contentKey(inputFile, fileContentCache);
+  }
+
+  private boolean isLookedUpByPath(InputFile inputFile) {
+    return baseDir != null && inputFile.status() == InputFile.Status.SAME;
+  }
+
+  private String contentKey(InputFile inputFile, FileContentCache contents) throws IOException {
+    MessageDigest digest = newDigest();
+    digest.update(configHash);
+    // stylelint syntax depends on the file extension
+    String fileName = inputFile.filename();
+    digest.update(fileName.substring(fileName.lastIndexOf('.') + 1).getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(contents.contents(inputFile).getBytes(StandardCharsets.UTF_8));
+    return toHex(digest.digest());
+  }
+
+  private String pathKey(Path projectBaseDir, InputFile inputFile) {
+    MessageDigest digest = newDigest();
+    digest.update(configHash);
+    // to never collide with content keys
+    digest.update((byte) 1);
+    // relative to be stable across checkouts in different directories
+    String path = projectBaseDir.relativize(Paths.get(inputFile.uri()).toAbsolutePath()).toString().replace('\\', '/');
+    digest.update(path.getBytes(StandardCharsets.UTF_8));
+    return toHex(digest.digest());
+  }
+
+  /**
+   * In incremental mode, issues found by content are also stored by path, as the path entry may be outdated.
+   */
+  @Nullable
+  Issue[] read(InputFile inputFile, @Nullable String key) {
+    if (baseDir == null) {
+      return read(key);
+    }
+    if (isLookedUpByPath(inputFile)) {
+      return readPathEntry(inputFile, key);
+    }
+    Issue[] issues = read(key);
+    if (issues != null) {
+      writePathEntry(baseDir, inputFile, issues);
+    }
+    return issues;
+  }
+
+  /**
+   * @return null when nothing is stored for the key or stored issues can't be read
+   */
+  @Nullable
+  Issue[] read(@Nullable String key) {
+    return readEntry(key, Issue[].class);
+  }
+
+  /**
+   * @return null when the path entry was stored for a different content of the file
+   */
+  @Nullable
+  private Issue[] readPathEntry(InputFile inputFile, @Nullable String key) {
+    PathEntry entry = readEntry(key, PathEntry.class);
+    if (entry == null || entry.fingerprint == null || entry.issues == null) {
+      return null;
+    }
+    if (!entry.fingerprint.equals(fingerprint(inputFile))) {
+      LOG.debug("Cached issues of {} were found for a different content", inputFile);
+      return null;
+    }
+    return entry.issues;
+  }
+
+  @Nullable
+  private <T> T readEntry(@Nullable String key, Class<T> type) {
+    if (directory == null || key == null) {
+      return null;
+    }
+    Path path = directory.resolve(key + ".json");
+    try {
+      T entry = GSON.fromJson(new String(Files.readAllBytes(path), StandardCharsets.UTF_8), type);
+      markAsUsed(path);
+      return entry;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | JsonParseException e) {
+      LOG.debug("Failed to read cached issues from " + path, e);
+      return null;
+    }
+  }
+
+  /**
+   * Entries which are used are not pruned
+   */
+  private static void markAsUsed(Path path) {
+    try {
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      LOG.debug("Failed to update modification time of " + path, e);
+    }
+  }
+
+  /**
+   * In incremental mode, issues are also stored by path to be found when the file is unchanged in a later analysis.
+   */
+  void write(InputFile inputFile, @Nullable String key, Issue[] issues) {
+    if (baseDir == null || key == null) {
+      write(key, issues);
+      return;
+    }
+    // the key of a file looked up by path is its path key
+    if (!isLookedUpByPath(inputFile)) {
+      write(key, issues);
+    }
+    writePathEntry(baseDir, inputFile, issues);
+  }
+
+  private void writePathEntry(Path projectBaseDir, InputFile inputFile, Issue[] issues) {
+    String fingerprint = fingerprint(inputFile);
+    if (fingerprint != null) {
+      writeEntry(pathKey(projectBaseDir, inputFile), new PathEntry(fingerprint, issues));
+    }
+  }
+
+  void write(@Nullable String key, Issue[] issues) {
+    writeEntry(key, issues);
+  }
+
+  private void writeEntry(@Nullable String key, Object entry) {
+    if (directory == null || key == null) {
+      return;
+    }
+    Path path = directory.resolve(key + ".json");
+    try {
+      // written to a temporary file first to never expose partially written entries
+      Path tmpPath = Files.createTempFile(directory, key, ".tmp");
+      Files.write(tmpPath, GSON.toJson(entry).getBytes(StandardCharsets.UTF_8));
+      Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.debug("Failed to write cached issues to " + path, e);
+    }
+  }
+
+  /**
+   * Digest of the file bytes, which are not decoded
+   *
+   * @return null when the file can't be read
+   */
+  @Nullable
+  private static String fingerprint(InputFile inputFile) {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[8192];
+    try (InputStream inputStream = inputFile.inputStream()) {
+      int read = inputStream.read(buffer);
+      while (read != -1) {
+        digest.update(buffer, 0, read);
+        read = inputStream.read(buffer);
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to read " + inputFile, e);
+      return null;
+    }
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+      chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  private static class PathEntry {
+    final String fingerprint;
+    final Issue[] issues;
+
+    PathEntry(String fingerprint, Issue[] issues) {
+      this.fingerprint = fingerprint;
+      this.issues = issues;
+    }
+  }
+}
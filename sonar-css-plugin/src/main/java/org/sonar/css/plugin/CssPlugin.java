@@ -53,6 +53,7 @@ public class CssPlugin implements Plugin {
       CssRuleSensor.class,
       StylelintReportSensor.class,
       MinifiedFilesFilter.class,
+      FileContentCache.class,
       NodeDeprecationWarning.class,
 
       PropertyDefinition.builder(FILE_SUFFIXES_KEY)
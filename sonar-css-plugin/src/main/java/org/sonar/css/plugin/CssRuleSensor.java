@@ -24,14 +24,26 @@ import com.google.gson.GsonBuilder;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 import javax.annotation.Nullable;
@@ -59,19 +71,36 @@ public class CssRuleSensor implements Sensor {
 
   private static final Logger LOG = Loggers.get(CssRuleSensor.class);
   private static final String CONFIG_PATH = "css-bundle/stylelintconfig.json";
+  private static final Issue[] NO_ISSUES = new Issue[0];
+  // internal property to set the maximum number of analysis requests waiting at the same time for css-bundle server
+  static final String CONCURRENT_REQUESTS_PROPERTY = "sonar.css.analysis.concurrentRequests";
+  // internal property to set the maximum number of files sent to css-bundle server in a single analysis request
+  static final String BATCH_SIZE_PROPERTY = "sonar.css.analysis.batchSize";
+  private static final int MAX_NORMALIZED_MESSAGES = 10_000;
+  // files with these encodings are read by css-bundle server itself, decoded with the Node.js Buffer encoding
+  private static final Map<Charset, String> SERVER_ENCODINGS = serverEncodings();
 
   private final CssRules cssRules;
   private final CssAnalyzerBridgeServer cssAnalyzerBridgeServer;
+  private final FileContentCache fileContentCache;
   private final AnalysisWarnings analysisWarnings;
+  // stylelint emits few distinct messages: each of them is normalized once per analysis
+  private final Map<String, String> normalizedMessages = new HashMap<>();
+  // handle of the configuration registered in css-bundle server for the current analysis
+  @Nullable
+  private volatile String configHandle;
 
 
   public CssRuleSensor(
     CheckFactory checkFactory,
     CssAnalyzerBridgeServer cssAnalyzerBridgeServer,
+    FileContentCache fileContentCache,
     @Nullable AnalysisWarnings analysisWarnings
   ) {
     this.cssRules = new CssRules(checkFactory);
     this.cssAnalyzerBridgeServer = cssAnalyzerBridgeServer;
+    this.fileContentCache = fileContentCache;
+    fileContentCache.addReader();
     this.analysisWarnings = analysisWarnings;
   }
 
@@ -84,7 +113,17 @@ public class CssRuleSensor implements Sensor {
 
   @Override
   public void execute(SensorContext context) {
+    try {
+      executeRules(context);
+    } finally {
+      fileContentCache.readerFinished();
+    }
+  }
+
+  private void executeRules(SensorContext context) {
     reportOldNodeProperty(context);
+    normalizedMessages.clear();
+    configHandle = null;
 
     List<InputFile> inputFiles = getInputFiles(context);
     if (inputFiles.isEmpty()) {
@@ -93,11 +132,16 @@ public class CssRuleSensor implements Sensor {
     }
 
     File configFile = null;
+    AnalysisCache cache = null;
     boolean serverRunning = false;
 
     try {
       serverRunning = cssAnalyzerBridgeServer.startServerLazily(context);
       configFile = createLinterConfig(context);
+      cache = AnalysisCache.create(context, configFile, fileContentCache);
+      if (serverRunning) {
+        configHandle = registerConfig(configFile);
+      }
     } catch (Exception e) {
       // we can end up here in the following cases: problem during bundle unpacking, or config file creation, or socket creation
       String msg = "Failure during CSS analysis preparation, " + cssAnalyzerBridgeServer.getCommandInfo();
@@ -105,8 +149,8 @@ public class CssRuleSensor implements Sensor {
       throwFailFast(context, e);
     }
 
-    if (serverRunning && configFile != null) {
-      analyzeFiles(context, inputFiles, configFile);
+    if (serverRunning && configFile != null && cache != null) {
+      analyzeFiles(context, inputFiles, configFile, cache);
     }
   }
 
@@ -125,15 +169,34 @@ public class CssRuleSensor implements Sensor {
     }
   }
 
-  private void analyzeFiles(SensorContext context, List<InputFile> inputFiles, File configFile) {
+  /**
+   * @return null when the configuration is not registered, then css-bundle server loads the configuration file for each request
+   */
+  @Nullable
+  private String registerConfig(File configFile) {
+    try {
+      return cssAnalyzerBridgeServer.registerConfig(configFile.toString());
+    } catch (IOException e) {
+      LOG.debug("Failed to register configuration in css-bundle server", e);
+      return null;
+    }
+  }
+
+  private void analyzeFiles(SensorContext context, List<InputFile> inputFiles, File configFile, AnalysisCache cache) {
     ProgressReport progressReport = new ProgressReport("Analysis progress", TimeUnit.SECONDS.toMillis(10));
     boolean success = false;
 
     try {
       progressReport.start(inputFiles.stream().map(InputFile::toString).collect(Collectors.toList()));
-      for (InputFile inputFile : inputFiles) {
-        analyzeFileWithContextCheck(inputFile, context, configFile);
-        progressReport.nextFile();
+      int concurrentRequests = Math.max(1, context.config().getInt(CONCURRENT_REQUESTS_PROPERTY).orElse(1));
+      int batchSize = Math.max(1, context.config().getInt(BATCH_SIZE_PROPERTY).orElse(1));
+      if (concurrentRequests > 1 || batchSize > 1) {
+        analyzeFilesConcurrently(context, inputFiles, configFile, cache, concurrentRequests, batchSize, progressReport);
+      } else {
+        for (InputFile inputFile : inputFiles) {
+          analyzeFileWithContextCheck(inputFile, context, configFile, cache);
+          progressReport.nextFile();
+        }
       }
       success = true;
 
@@ -160,40 +223,229 @@ public class CssRuleSensor implements Sensor {
     }
   }
 
-  void analyzeFileWithContextCheck(InputFile inputFile, SensorContext context, File configFile) {
+  /**
+   * Keeps up to {@code concurrentRequests} analysis requests waiting for css-bundle server at the same time,
+   * each request containing up to {@code batchSize} files.
+   * Requests are created and issues are saved on the sensor thread, in the order of {@code inputFiles}.
+   */
+  private void analyzeFilesConcurrently(SensorContext context, List<InputFile> inputFiles, File configFile, AnalysisCache cache,
+                                        int concurrentRequests, int batchSize, ProgressReport progressReport) {
+    ExecutorService executor = Executors.newFixedThreadPool(concurrentRequests, new RequestThreadFactory());
+    Deque<PendingAnalysis> pendingAnalyses = new ArrayDeque<>();
+    try {
+      for (int i = 0; i < inputFiles.size(); i += batchSize) {
+        if (pendingAnalyses.size() == concurrentRequests) {
+          savePendingAnalysis(context, pendingAnalyses.removeFirst(), cache, progressReport);
+        }
+        checkContext(context);
+        List<InputFile> batch = inputFiles.subList(i, Math.min(i + batchSize, inputFiles.size()));
+        pendingAnalyses.addLast(submitAnalysis(context, batch, configFile, cache, executor));
+      }
+      while (!pendingAnalyses.isEmpty()) {
+        savePendingAnalysis(context, pendingAnalyses.removeFirst(), cache, progressReport);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private PendingAnalysis submitAnalysis(SensorContext context, List<InputFile> batch, File configFile, AnalysisCache cache,
+                                         ExecutorService executor) {
+    PendingAnalysis pendingAnalysis = new PendingAnalysis(batch);
+    List<Request> requests = pendingAnalysis.requests;
+    for (InputFile inputFile : batch) {
+      try {
+        Request request = createRequest(context, inputFile, configFile);
+        if (request == null) {
+          continue;
+        }
+        pendingAnalysis.inputFilesByPath.put(request.filePath, inputFile);
+        String cacheKey = cache.key(inputFile);
+        Issue[] cachedIssues = cache.read(inputFile, cacheKey);
+        if (cachedIssues != null) {
+          LOG.debug("Using cached issues for " + request.filePath);
+          // saved on the sensor thread, in the order of the batch
+          pendingAnalysis.addResult(request.filePath, cachedIssues);
+        } else {
+          LOG.debug("Analyzing " + request.filePath);
+          requests.add(request);
+          if (cacheKey != null) {
+            pendingAnalysis.cacheKeys.put(request.filePath, cacheKey);
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        throw new IllegalStateException("Failure during analysis of " + inputFile.uri(), e);
+      }
+    }
+    if (requests.isEmpty()) {
+      pendingAnalysis.results.add(PendingAnalysis.END);
+    } else {
+      pendingAnalysis.task = executor.submit(() -> {
+        try {
+          if (requests.size() == 1) {
+            Request request = requests.get(0);
+            pendingAnalysis.addResult(request.filePath, cssAnalyzerBridgeServer.analyze(request));
+          } else {
+            // issues of each file are made available as soon as they are received
+            cssAnalyzerBridgeServer.analyzeBatch(requests, pendingAnalysis::addResult);
+          }
+        } finally {
+          pendingAnalysis.results.add(PendingAnalysis.END);
+        }
+        return null;
+      });
+    }
+    return pendingAnalysis;
+  }
+
+  private void savePendingAnalysis(SensorContext context, PendingAnalysis pendingAnalysis, AnalysisCache cache, ProgressReport progressReport) {
+    try {
+      AnalysisResult result = pendingAnalysis.results.take();
+      while (result != PendingAnalysis.END) {
+        saveResult(context, pendingAnalysis, result, cache);
+        result = pendingAnalysis.results.take();
+      }
+      if (pendingAnalysis.task != null) {
+        pendingAnalysis.task.get();
+      }
+      analyzeMissingFiles(context, pendingAnalysis, cache);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Analysis interrupted while waiting for css-bundle server");
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Failure during analysis of " + describe(pendingAnalysis.inputFiles), e.getCause());
+    }
+    for (int i = 0; i < pendingAnalysis.inputFiles.size(); i++) {
+      progressReport.nextFile();
+    }
+  }
+
+  /**
+   * Files missing from a batch response, for instance when the Node.js process died while answering, are sent again one by one.
+   */
+  private void analyzeMissingFiles(SensorContext context, PendingAnalysis pendingAnalysis, AnalysisCache cache) {
+    for (Request request : pendingAnalysis.requests) {
+      InputFile inputFile = pendingAnalysis.inputFilesByPath.get(request.filePath);
+      if (inputFile != null) {
+        LOG.warn("No issues received for {}, sending it again to css-bundle server", request.filePath);
+        Issue[] issues;
+        try {
+          issues = cssAnalyzerBridgeServer.analyze(request);
+        } catch (IOException | RuntimeException e) {
+          throw new IllegalStateException("Failure during analysis of " + inputFile.uri(), e);
+        }
+        saveResult(context, pendingAnalysis, new AnalysisResult(request.filePath, issues), cache);
+      }
+    }
+  }
+
+  private void saveResult(SensorContext context, PendingAnalysis pendingAnalysis, AnalysisResult result, AnalysisCache cache) {
+    // removed to save issues only once, even if the server answers twice for the same file
+    InputFile inputFile = pendingAnalysis.inputFilesByPath.remove(result.filePath);
+    if (inputFile == null) {
+      LOG.debug("Ignoring issues received for unexpected file {}", result.filePath);
+      return;
+    }
+    if (result.issues == null) {
+      // not cached, so that the file is analyzed again by the next analysis
+      LOG.debug("Failed to analyze {}", result.filePath);
+      return;
+    }
+    LOG.debug("Found {} issue(s)", result.issues.length);
+    cache.write(inputFile, pendingAnalysis.cacheKeys.get(result.filePath), result.issues);
+    try {
+      saveIssues(context, inputFile, result.issues);
+    } catch (RuntimeException e) {
+      throw new IllegalStateException("Failure during analysis of " + inputFile.uri(), e);
+    }
+  }
+
+  private static String describe(List<InputFile> inputFiles) {
+    if (inputFiles.size() == 1) {
+      return inputFiles.get(0).uri().toString();
+    }
+    return inputFiles.stream().map(inputFile -> inputFile.uri().toString()).collect(Collectors.joining(", ", "[", "]"));
+  }
+
+  void analyzeFileWithContextCheck(InputFile inputFile, SensorContext context, File configFile, AnalysisCache cache) {
+    checkContext(context);
+    try {
+      analyzeFile(context, inputFile, configFile, cache);
+    } catch (IOException | RuntimeException e) {
+      throw new IllegalStateException("Failure during analysis of " + inputFile.uri(), e);
+    }
+  }
+
+  private void checkContext(SensorContext context) {
     if (context.isCancelled()) {
       throw new CancellationException("Analysis interrupted because the SensorContext is in cancelled state");
     }
     if (!cssAnalyzerBridgeServer.isAlive()) {
       throw new IllegalStateException("css-bundle server is not answering");
     }
-    try {
-      analyzeFile(context, inputFile, configFile);
-    } catch (IOException | RuntimeException e) {
-      throw new IllegalStateException("Failure during analysis of " + inputFile.uri(), e);
+  }
+
+  void analyzeFile(SensorContext context, InputFile inputFile, File configFile, AnalysisCache cache) throws IOException {
+    Request request = createRequest(context, inputFile, configFile);
+    if (request == null) {
+      return;
+    }
+    String cacheKey = cache.key(inputFile);
+    Issue[] issues = cache.read(inputFile, cacheKey);
+    if (issues != null) {
+      LOG.debug("Using cached issues for " + request.filePath);
+    } else {
+      LOG.debug("Analyzing " + request.filePath);
+      issues = cssAnalyzerBridgeServer.analyze(request);
+      if (issues == null) {
+        // not cached, so that the file is analyzed again by the next analysis
+        LOG.debug("Failed to analyze {}", request.filePath);
+        return;
+      }
+      cache.write(inputFile, cacheKey, issues);
     }
+    LOG.debug("Found {} issue(s)", issues.length);
+    saveIssues(context, inputFile, issues);
   }
 
-  void analyzeFile(SensorContext context, InputFile inputFile, File configFile) throws IOException {
+  /**
+   * @return null when the file can't be analyzed by css-bundle server
+   */
+  @Nullable
+  private Request createRequest(SensorContext context, InputFile inputFile, File configFile) throws IOException {
     URI uri = inputFile.uri();
     if (!"file".equalsIgnoreCase(uri.getScheme())) {
       LOG.debug("Skipping {} as it has not 'file' scheme", uri);
-      return;
+      return null;
     }
-    String fileContent = shouldSendFileContent(context, inputFile) ? inputFile.contents() : null;
-    Request request = new Request(new File(uri).getAbsolutePath(), fileContent, configFile.toString());
-    LOG.debug("Analyzing " + request.filePath);
-    Issue[] issues = cssAnalyzerBridgeServer.analyze(request);
-    LOG.debug("Found {} issue(s)", issues.length);
-    saveIssues(context, inputFile, issues);
+    String filePath = new File(uri).getAbsolutePath();
+    if (shouldSendFileContent(context, inputFile)) {
+      return new Request(filePath, fileContentCache.contents(inputFile), null, configFile.toString(), configHandle);
+    }
+    return new Request(filePath, null, SERVER_ENCODINGS.get(inputFile.charset()), configFile.toString(), configHandle);
   }
 
+  /**
+   * In SonarLint, the contents of the file can be the ones of an editor buffer which was not saved yet.
+   */
   private static boolean shouldSendFileContent(SensorContext context, InputFile file) {
     return context.runtime().getProduct() == SonarProduct.SONARLINT
-      || !StandardCharsets.UTF_8.equals(file.charset());
+      || (!StandardCharsets.UTF_8.equals(file.charset()) && !SERVER_ENCODINGS.containsKey(file.charset()));
+  }
+
+  /**
+   * Only encodings supported by all Node.js builds: other ones depend on the ICU data Node.js was built with.
+   * US-ASCII is not one of them, as Node.js decodes bytes above 0x7F unlike Java.
+   */
+  private static Map<Charset, String> serverEncodings() {
+    Map<Charset, String> encodings = new HashMap<>();
+    encodings.put(StandardCharsets.ISO_8859_1, "latin1");
+    encodings.put(StandardCharsets.UTF_16LE, "utf16le");
+    return Collections.unmodifiableMap(encodings);
   }
 
   private void saveIssues(SensorContext context, InputFile inputFile, Issue[] issues) {
+    LineRanges lineRanges = new LineRanges(inputFile);
     for (Issue issue : issues) {
       NewIssue sonarIssue = context.newIssue();
 
@@ -210,8 +462,8 @@ public class CssRuleSensor implements Sensor {
       } else {
         NewIssueLocation location = sonarIssue.newLocation()
           .on(inputFile)
-          .at(inputFile.selectLine(issue.line))
-          .message(normalizeMessage(issue.text));
+          .at(lineRanges.selectLine(issue.line))
+          .message(normalizedMessage(issue.text));
 
         sonarIssue
           .at(location)
@@ -274,15 +526,47 @@ public class CssRuleSensor implements Sensor {
     return configFile;
   }
 
-  private static String normalizeMessage(String message) {
-    // stylelint messages have format "message (rulekey)"
-    Pattern pattern = Pattern.compile("(.+)\\([a-z\\-]+\\)");
-    Matcher matcher = pattern.matcher(message);
-    if (matcher.matches()) {
-      return matcher.group(1);
-    } else {
+  private String normalizedMessage(String message) {
+    String normalized = normalizedMessages.get(message);
+    if (normalized == null) {
+      normalized = normalizeMessage(message);
+      if (normalizedMessages.size() < MAX_NORMALIZED_MESSAGES) {
+        normalizedMessages.put(message, normalized);
+      }
+    }
+    return normalized;
+  }
+
+  /**
+   * stylelint messages have format "message (rulekey)", where "rulekey" is made of lowercase letters and dashes
+   */
+  static String normalizeMessage(String message) {
+    int end = message.length() - 1;
+    if (end < 0 || message.charAt(end) != ')') {
+      return message;
+    }
+    int ruleKeyStart = end;
+    while (ruleKeyStart > 0 && isRuleKeyChar(message.charAt(ruleKeyStart - 1))) {
+      ruleKeyStart--;
+    }
+    int openingParenthesis = ruleKeyStart - 1;
+    if (ruleKeyStart == end || openingParenthesis < 1 || message.charAt(openingParenthesis) != '(') {
       return message;
     }
+    for (int i = 0; i < openingParenthesis; i++) {
+      if (isLineTerminator(message.charAt(i))) {
+        return message;
+      }
+    }
+    return message.substring(0, openingParenthesis);
+  }
+
+  private static boolean isRuleKeyChar(char c) {
+    return (c >= 'a' && c <= 'z') || c == '-';
+  }
+
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
   }
 
   private void reportAnalysisWarning(String message) {
@@ -290,4 +574,53 @@ public class CssRuleSensor implements Sensor {
       analysisWarnings.addUnique(message);
     }
   }
+
+  private static class PendingAnalysis {
+    // marks the end of the results, added even when the analysis fails
+    static final AnalysisResult END = new AnalysisResult("", NO_ISSUES);
+
+    final List<InputFile> inputFiles;
+    // files sent to the server or found in the cache and not saved yet, keyed by path, skipped files are absent
+    final Map<String, InputFile> inputFilesByPath = new HashMap<>();
+    // files to send to the server
+    final List<Request> requests = new ArrayList<>();
+    // cache keys of the files sent to the server, absent when the cache is disabled
+    final Map<String, String> cacheKeys = new HashMap<>();
+    // filled by the request thread, consumed by the sensor thread
+    final BlockingQueue<AnalysisResult> results = new LinkedBlockingQueue<>();
+    // null when all the files are skipped
+    @Nullable
+    Future<?> task;
+
+    PendingAnalysis(List<InputFile> inputFiles) {
+      this.inputFiles = inputFiles;
+    }
+
+    void addResult(String filePath, @Nullable Issue[] issues) {
+      results.add(new AnalysisResult(filePath, issues));
+    }
+  }
+
+  private static class AnalysisResult {
+    final String filePath;
+    // null when the analysis failed
+    @Nullable
+    final Issue[] issues;
+
+    AnalysisResult(String filePath, @Nullable Issue[] issues) {
+      this.filePath = filePath;
+      this.issues = issues;
+    }
+  }
+
+  private static class RequestThreadFactory implements ThreadFactory {
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "css-bundle-request-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
 }
@@ -0,0 +1,111 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.scanner.ScannerSide;
+import org.sonarsource.api.sonarlint.SonarLintSide;
+
+/**
+ * Contents of the input files, shared by the components reading them during the analysis
+ * so that each file is read and decoded once as long as it fits in the cache.
+ * Least recently used contents are evicted when the total size exceeds the configured maximum.
+ * Contents are released once all the sensors reading them are done, as the sensors of other languages don't need them.
+ */
+@ScannerSide
+@SonarLintSide
+public class FileContentCache {
+
+  // internal property to set the maximum number of characters kept in the cache
+  static final String MAX_SIZE_PROPERTY = "sonar.css.contentCache.maxSize";
+  private static final long DEFAULT_MAX_SIZE = 20_000_000L;
+
+  private final long maxSize;
+  private final Map<String, String> contentsByUri = new LinkedHashMap<>(16, 0.75f, true);
+  private long size;
+  // sensors which registered with addReader
+  private int readers;
+  private int finishedReaders;
+
+  public FileContentCache(Configuration configuration) {
+    this.maxSize = Math.max(0, configuration.getLong(MAX_SIZE_PROPERTY).orElse(DEFAULT_MAX_SIZE));
+  }
+
+  public String contents(InputFile inputFile) throws IOException {
+    String uri = inputFile.uri().toString();
+    synchronized (this) {
+      String contents = contentsByUri.get(uri);
+      if (contents != null) {
+        return contents;
+      }
+    }
+    // read outside of the lock not to block other threads, the same file is rarely read concurrently
+    String contents = inputFile.contents();
+    if (contents.length() <= maxSize && !isReleased()) {
+      put(uri, contents);
+    }
+    return contents;
+  }
+
+  /**
+   * To call when a sensor reading contents is created
+   */
+  public synchronized void addReader() {
+    readers++;
+  }
+
+  /**
+   * To call when a sensor registered with {@link #addReader()} is done, even when it did not read anything.
+   * Contents are released when all the registered sensors are done, and they are not kept anymore.
+   */
+  public synchronized void readerFinished() {
+    finishedReaders++;
+    if (isReleased()) {
+      contentsByUri.clear();
+      size = 0;
+    }
+  }
+
+  private synchronized boolean isReleased() {
+    return readers > 0 && finishedReaders >= readers;
+  }
+
+  private synchronized void put(String uri, String contents) {
+    String previous = contentsByUri.put(uri, contents);
+    if (previous != null) {
+      size -= previous.length();
+    }
+    size += contents.length();
+    Iterator<String> leastRecentlyUsed = contentsByUri.values().iterator();
+    while (size > maxSize) {
+      size -= leastRecentlyUsed.next().length();
+      leastRecentlyUsed.remove();
+    }
+  }
+
+  synchronized int size() {
+    return contentsByUri.size();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin;
+
+import java.net.URI;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.utils.PathUtils;
+
+/**
+ * Input files of the project by absolute and relative path, built once to resolve the many paths of an external report.
+ * A path which doesn't match exactly is normalized, then compared ignoring case when it matches a single file.
+ */
+final class InputFileIndex {
+
+  private final Path baseDir;
+  private final Map<String, InputFile> filesByPath = new HashMap<>();
+  private final Map<String, InputFile> filesByLowerCasePath = new HashMap<>();
+  private final Set<String> ambiguousLowerCasePaths = new HashSet<>();
+
+  private InputFileIndex(Path baseDir) {
+    this.baseDir = baseDir;
+  }
+
+  static InputFileIndex create(FileSystem fileSystem) {
+    InputFileIndex index = new InputFileIndex(fileSystem.baseDir().toPath().toAbsolutePath().normalize());
+    for (InputFile inputFile : fileSystem.inputFiles(fileSystem.predicates().all())) {
+      index.add(inputFile);
+    }
+    return index;
+  }
+
+  private void add(InputFile inputFile) {
+    URI uri = inputFile.uri();
+    // such files can't be referenced by a path in a report
+    if (!"file".equalsIgnoreCase(uri.getScheme())) {
+      return;
+    }
+    Path path = Paths.get(uri).normalize();
+    String absolutePath = PathUtils.sanitize(path.toString());
+    filesByPath.put(absolutePath, inputFile);
+    if (path.startsWith(baseDir)) {
+      filesByPath.put(PathUtils.sanitize(baseDir.relativize(path).toString()), inputFile);
+    }
+    String lowerCasePath = absolutePath.toLowerCase(Locale.ROOT);
+    if (filesByLowerCasePath.put(lowerCasePath, inputFile) != null) {
+      ambiguousLowerCasePaths.add(lowerCasePath);
+    }
+  }
+
+  @Nullable
+  InputFile inputFile(@Nullable String path) {
+    if (path == null) {
+      return null;
+    }
+    String sanitizedPath = PathUtils.sanitize(path);
+    InputFile inputFile = sanitizedPath == null ? null : filesByPath.get(sanitizedPath);
+    if (inputFile != null) {
+      return inputFile;
+    }
+    String normalizedPath = normalize(path);
+    if (normalizedPath == null) {
+      return null;
+    }
+    inputFile = filesByPath.get(normalizedPath);
+    if (inputFile != null) {
+      return inputFile;
+    }
+    String lowerCasePath = normalizedPath.toLowerCase(Locale.ROOT);
+    return ambiguousLowerCasePaths.contains(lowerCasePath) ? null : filesByLowerCasePath.get(lowerCasePath);
+  }
+
+  /**
+   * @return the absolute path, resolved from the base directory, with "/" separators and without "." or ".." elements
+   */
+  @Nullable
+  private String normalize(String path) {
+    try {
+      Path resolved = baseDir.resolve(path.replace('\\', '/')).normalize();
+      return PathUtils.sanitize(resolved.toString());
+    } catch (InvalidPathException e) {
+      return null;
+    }
+  }
+}
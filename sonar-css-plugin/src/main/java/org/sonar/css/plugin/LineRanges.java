@@ -0,0 +1,52 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin;
+
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.TextRange;
+
+/**
+ * Text ranges of the lines of a file, computed once per line while saving the issues of this file.
+ */
+final class LineRanges {
+
+  private final InputFile inputFile;
+  private TextRange[] ranges;
+
+  LineRanges(InputFile inputFile) {
+    this.inputFile = inputFile;
+  }
+
+  TextRange selectLine(int line) {
+    if (ranges == null) {
+      ranges = new TextRange[inputFile.lines() + 1];
+    }
+    if (line < 1 || line >= ranges.length) {
+      // let the input file report the invalid line
+      return inputFile.selectLine(line);
+    }
+    TextRange range = ranges[line];
+    if (range == null) {
+      range = inputFile.selectLine(line);
+      ranges[line] = range;
+    }
+    return range;
+  }
+}
@@ -20,6 +20,11 @@
 package org.sonar.css.plugin;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.fs.InputFileFilter;
 import org.sonar.api.utils.log.Logger;
@@ -28,6 +33,7 @@ import org.sonar.api.utils.log.Loggers;
 public class MinifiedFilesFilter implements InputFileFilter {
 
   private static final int AVERAGE_LINE_LENGTH_THRESHOLD = 200;
+  private static final int BUFFER_SIZE = 8192;
 
   private static final Logger LOG = Loggers.get(MinifiedFilesFilter.class);
 
@@ -54,9 +60,42 @@ public class MinifiedFilesFilter implements InputFileFilter {
     return fileName.endsWith("-min.css") || fileName.endsWith(".min.css");
   }
 
+  /**
+   * Same as {@code contents().length() / lines() > AVERAGE_LINE_LENGTH_THRESHOLD}, without building the contents:
+   * the file is read by chunks until the minified length is reached.
+   */
   private static boolean hasExcessiveAverageLineLength(InputFile file) throws IOException {
-    int averageLineLength = file.contents().length() / file.lines();
-    return averageLineLength > AVERAGE_LINE_LENGTH_THRESHOLD;
+    long minifiedLength = (AVERAGE_LINE_LENGTH_THRESHOLD + 1L) * file.lines();
+    if (fileSize(file) < minifiedLength) {
+      // a character is encoded with at least one byte
+      return false;
+    }
+    try (Reader reader = new InputStreamReader(file.inputStream(), file.charset())) {
+      char[] buffer = new char[BUFFER_SIZE];
+      long length = 0;
+      int read = reader.read(buffer);
+      while (read != -1) {
+        length += read;
+        if (length >= minifiedLength) {
+          return true;
+        }
+        read = reader.read(buffer);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * @return the size in bytes, or {@code Long.MAX_VALUE} when the file is not on disk
+   */
+  private static long fileSize(InputFile file) throws IOException {
+    if ("file".equalsIgnoreCase(file.uri().getScheme())) {
+      Path path = Paths.get(file.uri());
+      if (Files.isRegularFile(path)) {
+        return Files.size(path);
+      }
+    }
+    return Long.MAX_VALUE;
   }
 
 }
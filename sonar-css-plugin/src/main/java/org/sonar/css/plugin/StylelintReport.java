@@ -27,10 +27,13 @@ public class StylelintReport {
   static class IssuesPerFile {
     String source;
     Issue[] warnings;
+    // index of the report the file was read from, not read from the report
+    transient int report;
   }
 
   static class Issue {
     int line;
+    Integer column;
     String rule;
     String text;
   }
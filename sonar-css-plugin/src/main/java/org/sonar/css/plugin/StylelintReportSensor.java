@@ -21,16 +21,33 @@ package org.sonar.css.plugin;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import javax.annotation.Nullable;
 import org.apache.commons.io.ByteOrderMark;
 import org.apache.commons.io.input.BOMInputStream;
-import org.sonar.api.batch.fs.FilePredicates;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.rule.CheckFactory;
 import org.sonar.api.batch.sensor.Sensor;
@@ -54,10 +71,16 @@ public class StylelintReportSensor implements Sensor {
 
   private static final Logger LOG = Loggers.get(StylelintReportSensor.class);
   private static final String FILE_EXCEPTION_MESSAGE = "No issues information will be saved as the report file can't be read.";
+  private static final Gson GSON = new Gson();
+  // internal property to set the number of threads reading report files, by default reports are read on the sensor thread
+  static final String THREADS_PROPERTY = "sonar.css.stylelint.threads";
+  // bounds the number of report entries read in parallel and waiting to be saved
+  private static final int MAX_PENDING_ENTRIES = 1000;
+  private static final IssuesPerFile END_OF_REPORT = new IssuesPerFile();
   private static final ByteOrderMark[] BYTE_ORDER_MARKS = {ByteOrderMark.UTF_8, ByteOrderMark.UTF_16LE, ByteOrderMark.UTF_16BE, ByteOrderMark.UTF_32LE, ByteOrderMark.UTF_32BE};
 
   private final CssRules cssRules;
-  private ExternalRuleLoader stylelintRuleLoader = getStylelintRuleLoader();
+  private final ExternalRuleLoader stylelintRuleLoader = getStylelintRuleLoader();
 
   public StylelintReportSensor(CheckFactory checkFactory) {
     this.cssRules = new CssRules(checkFactory);
@@ -74,10 +97,77 @@ public class StylelintReportSensor implements Sensor {
   @Override
   public void execute(SensorContext context) {
     List<File> reportFiles = ExternalReportProvider.getReportFiles(context, CssPlugin.STYLELINT_REPORT_PATHS);
-    reportFiles.forEach(report -> importReport(report, context));
+    if (reportFiles.isEmpty()) {
+      return;
+    }
+    InputFileIndex inputFileIndex = InputFileIndex.create(context.fileSystem());
+    // the same warning can be found in several reports, e.g. when the reports of sharded jobs overlap,
+    // warnings are kept with the index of the first report they were found in, there is nothing to keep with a single report
+    Map<List<Object>, Integer> savedWarnings = reportFiles.size() > 1 ? new HashMap<>() : null;
+    Consumer<IssuesPerFile> saver = issuesPerFile -> saveIssuesPerFile(context, issuesPerFile, inputFileIndex, savedWarnings);
+
+    int threads = Math.min(reportFiles.size(), Math.max(1, context.config().getInt(THREADS_PROPERTY).orElse(1)));
+    if (threads > 1) {
+      importReportsInParallel(reportFiles, threads, saver);
+    } else {
+      for (int i = 0; i < reportFiles.size(); i++) {
+        importReport(reportFiles.get(i), i, saver);
+      }
+    }
+  }
+
+  private static void importReportsInParallel(List<File> reportFiles, int threads, Consumer<IssuesPerFile> saver) {
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new ReportThreadFactory());
+    BlockingQueue<IssuesPerFile> parsedEntries = new ArrayBlockingQueue<>(MAX_PENDING_ENTRIES);
+    List<Future<?>> tasks = new ArrayList<>();
+    try {
+      for (int i = 0; i < reportFiles.size(); i++) {
+        File report = reportFiles.get(i);
+        int reportIndex = i;
+        tasks.add(executor.submit(() -> readReport(report, reportIndex, parsedEntries)));
+      }
+      // issues are saved on the sensor thread, as SensorContext is not meant to be used concurrently
+      int runningTasks = tasks.size();
+      while (runningTasks > 0) {
+        IssuesPerFile issuesPerFile = parsedEntries.take();
+        if (issuesPerFile == END_OF_REPORT) {
+          runningTasks--;
+        } else {
+          saver.accept(issuesPerFile);
+        }
+      }
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while importing stylelint reports", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Failure while importing stylelint reports", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void readReport(File report, int reportIndex, BlockingQueue<IssuesPerFile> parsedEntries) {
+    try {
+      importReport(report, reportIndex, issuesPerFile -> put(parsedEntries, issuesPerFile));
+    } finally {
+      put(parsedEntries, END_OF_REPORT);
+    }
+  }
+
+  private static void put(BlockingQueue<IssuesPerFile> parsedEntries, IssuesPerFile issuesPerFile) {
+    try {
+      parsedEntries.put(issuesPerFile);
+    } catch (InterruptedException e) {
+      // the import was stopped, nothing is waiting for this entry anymore
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Import of stylelint report interrupted");
+    }
   }
 
-  private void importReport(File report, SensorContext context) {
+  private static void importReport(File report, int reportIndex, Consumer<IssuesPerFile> consumer) {
     LOG.info("Importing {}", report.getAbsoluteFile());
 
     try (BOMInputStream bomInputStream = new BOMInputStream(Files.newInputStream(report.toPath()), BYTE_ORDER_MARKS)) {
@@ -86,26 +176,57 @@ public class StylelintReportSensor implements Sensor {
         charsetName = StandardCharsets.UTF_8.name();
       }
 
-      IssuesPerFile[] issues = new Gson().fromJson(new InputStreamReader(bomInputStream, charsetName), IssuesPerFile[].class);
-      for (IssuesPerFile issuesPerFile : issues) {
-        InputFile inputFile = getInputFile(context, issuesPerFile.source);
-        if (inputFile != null) {
-          for (Issue issue : issuesPerFile.warnings) {
-            saveStylelintIssue(context, issue, inputFile);
-          }
+      // issues of a file are consumed before reading the next file, so that the whole report is never kept in memory
+      JsonReader jsonReader = new JsonReader(new InputStreamReader(bomInputStream, charsetName));
+      jsonReader.setLenient(true);
+      if (jsonReader.peek() != JsonToken.BEGIN_ARRAY) {
+        throw new JsonSyntaxException("Expected an array but was " + jsonReader.peek());
+      }
+      jsonReader.beginArray();
+      while (jsonReader.hasNext()) {
+        IssuesPerFile issuesPerFile = GSON.fromJson(jsonReader, IssuesPerFile.class);
+        if (issuesPerFile != null) {
+          issuesPerFile.report = reportIndex;
+          consumer.accept(issuesPerFile);
         }
       }
+      jsonReader.endArray();
+    } catch (MalformedJsonException | EOFException | JsonSyntaxException e) {
+      LOG.error("Failed to parse json stylelint report", e);
     } catch (IOException e) {
       LOG.error(FILE_EXCEPTION_MESSAGE, e);
-    } catch (JsonSyntaxException e) {
-      LOG.error("Failed to parse json stylelint report", e);
     }
   }
 
+  private void saveIssuesPerFile(SensorContext context, IssuesPerFile issuesPerFile, InputFileIndex inputFileIndex,
+                                 @Nullable Map<List<Object>, Integer> savedWarnings) {
+    InputFile inputFile = getInputFile(inputFileIndex, issuesPerFile.source);
+    if (inputFile != null && issuesPerFile.warnings != null) {
+      LineRanges lineRanges = new LineRanges(inputFile);
+      for (Issue issue : issuesPerFile.warnings) {
+        if (!isFromOtherReport(savedWarnings, inputFile, issue, issuesPerFile.report)) {
+          saveStylelintIssue(context, issue, inputFile, lineRanges);
+        }
+      }
+    }
+  }
+
+  /**
+   * Identical warnings of a single report are distinct warnings, e.g. on several properties of the same declaration block.
+   * Warnings without column are not compared, as they can't be told apart.
+   */
+  private static boolean isFromOtherReport(@Nullable Map<List<Object>, Integer> savedWarnings, InputFile inputFile, Issue issue, int report) {
+    if (savedWarnings == null || issue.column == null) {
+      return false;
+    }
+    List<Object> key = Arrays.asList(inputFile.key(), issue.line, issue.column, issue.rule, issue.text);
+    Integer firstReport = savedWarnings.putIfAbsent(key, report);
+    return firstReport != null && firstReport != report;
+  }
+
   @Nullable
-  private static InputFile getInputFile(SensorContext context, String fileName) {
-    FilePredicates predicates = context.fileSystem().predicates();
-    InputFile inputFile = context.fileSystem().inputFile(predicates.or(predicates.hasRelativePath(fileName), predicates.hasAbsolutePath(fileName)));
+  private static InputFile getInputFile(InputFileIndex inputFileIndex, String fileName) {
+    InputFile inputFile = inputFileIndex.inputFile(fileName);
     if (inputFile == null) {
       LOG.warn("No input file found for {}. No stylelint issues will be imported on this file.", fileName);
       return null;
@@ -113,7 +234,7 @@ public class StylelintReportSensor implements Sensor {
     return inputFile;
   }
 
-  private void saveStylelintIssue(SensorContext context, Issue issue, InputFile inputFile) {
+  private void saveStylelintIssue(SensorContext context, Issue issue, InputFile inputFile, LineRanges lineRanges) {
     String stylelintKey = issue.rule;
 
     RuleKey sonarKey = cssRules.getActiveSonarKey(stylelintKey);
@@ -128,7 +249,7 @@ public class StylelintReportSensor implements Sensor {
     NewIssueLocation primaryLocation = newExternalIssue.newLocation()
       .message(issue.text)
       .on(inputFile)
-      .at(inputFile.selectLine(issue.line));
+      .at(lineRanges.selectLine(issue.line));
 
     newExternalIssue
       .at(primaryLocation)
@@ -140,8 +261,27 @@ public class StylelintReportSensor implements Sensor {
       .save();
   }
 
+  private static class ReportThreadFactory implements ThreadFactory {
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "stylelint-report-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  /**
+   * @return the metadata of stylelint rules, loaded from "rules.json" the first time it's needed and then shared,
+   * as it doesn't change during the life of the plugin
+   */
   public static ExternalRuleLoader getStylelintRuleLoader() {
-    return new ExternalRuleLoader(
+    return StylelintRuleLoaderHolder.INSTANCE;
+  }
+
+  private static class StylelintRuleLoaderHolder {
+    private static final ExternalRuleLoader INSTANCE = new ExternalRuleLoader(
       StylelintReportSensor.STYLELINT,
       StylelintReportSensor.STYLELINT,
       RESOURCE_FOLDER + StylelintReportSensor.STYLELINT + "/rules.json",
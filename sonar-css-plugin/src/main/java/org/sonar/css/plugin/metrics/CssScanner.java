@@ -0,0 +1,369 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.metrics;
+
+// Single pass scanner producing the same tokens as the former regexp based lexer (see CssLexer in tests):
+// at each position token types are tried in the order of the former channels, and characters which do not start
+// any token are skipped. Lines and columns follow the same conventions: a line break is "\n", or "\r" not followed
+// by "\n", columns are 0-based and count UTF-16 chars.
+// As tokens never need to be re-scanned with another rule, scanning time is linear in the size of the input.
+// An instance can scan several inputs one after the other, but must not be shared between threads.
+final class CssScanner {
+
+  private static final int NOT_SEARCHED = -2;
+
+  private String input = "";
+  private int length;
+
+  private int position;
+  private int line;
+  private int column;
+  // position of the next "*/", -1 when there is none until the end of the input
+  private int nextCommentEnd;
+
+  /**
+   * Replaces the content of {@code buffer} with the tokens of {@code input}
+   */
+  void scan(String input, TokenBuffer buffer) {
+    buffer.reset(input);
+    reset(input);
+    while (position < length) {
+      int start = position;
+      int startLine = line;
+      int startColumn = column;
+      CssTokenType type = CssTokenType.COMMENT;
+      int end = comment(start);
+      if (end < 0) {
+        type = CssTokenType.STRING;
+        end = string(start);
+      }
+      if (end < 0) {
+        type = CssTokenType.AT_IDENTIFIER;
+        end = atIdentifier(start);
+      }
+      if (end < 0) {
+        type = CssTokenType.HASH_IDENTIFIER;
+        end = prefixedIdentifier(start, '#');
+      }
+      if (end < 0) {
+        type = CssTokenType.DOLLAR_IDENTIFIER;
+        end = prefixedIdentifier(start, '$');
+      }
+      if (end < 0) {
+        type = CssTokenType.IDENTIFIER;
+        end = identifier(start);
+      }
+      if (end < 0) {
+        type = CssTokenType.NUMBER;
+        end = number(start);
+      }
+      if (end < 0) {
+        type = CssTokenType.PUNCTUATOR;
+        end = isPunctuator(input.charAt(start)) ? (start + 1) : -1;
+      }
+      if (end < 0) {
+        // no token starts with this character
+        moveTo(start + 1);
+      } else {
+        boolean hexColor = type == CssTokenType.HASH_IDENTIFIER && isHexDigits(start + 1, end);
+        addToken(buffer, type, hexColor, start, end, startLine, startColumn);
+        moveTo(end);
+      }
+    }
+    // not to retain the input
+    reset("");
+  }
+
+  private void reset(String newInput) {
+    input = newInput;
+    length = newInput.length();
+    position = 0;
+    line = 1;
+    column = 0;
+    nextCommentEnd = NOT_SEARCHED;
+  }
+
+  private void addToken(TokenBuffer buffer, CssTokenType type, boolean hexColor, int start, int end, int startLine, int startColumn) {
+    // "\r\n", "\n" and "\r" are line breaks inside a token
+    int endLine = startLine;
+    int lastLineStart = -1;
+    for (int i = start; i < end; i++) {
+      char c = input.charAt(i);
+      if (c == '\r' || c == '\n') {
+        if (c == '\r' && i + 1 < end && input.charAt(i + 1) == '\n') {
+          i++;
+        }
+        endLine++;
+        lastLineStart = i + 1;
+      }
+    }
+    int endColumn = lastLineStart < 0 ? (startColumn + end - start) : (end - lastLineStart);
+    buffer.add(type, hexColor, start, end, startLine, startColumn, endLine, endColumn);
+  }
+
+  private void moveTo(int end) {
+    for (int i = position; i < end; i++) {
+      char c = input.charAt(i);
+      if (c == '\n' || (c == '\r' && (i + 1 == length || input.charAt(i + 1) != '\n'))) {
+        line++;
+        column = 0;
+      } else {
+        column++;
+      }
+    }
+    position = end;
+  }
+
+  /**
+   * Block comment, or line comment starting with "//"
+   */
+  private int comment(int start) {
+    if (charAt(start) != '/') {
+      return -1;
+    }
+    char next = charAt(start + 1);
+    if (next == '*') {
+      int end = commentEnd(start + 2);
+      return end < 0 ? -1 : (end + 2);
+    }
+    if (next == '/') {
+      int i = start + 2;
+      while (i < length && !isNewLine(input.charAt(i))) {
+        i++;
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private int commentEnd(int from) {
+    if (nextCommentEnd == NOT_SEARCHED || (nextCommentEnd >= 0 && nextCommentEnd < from)) {
+      nextCommentEnd = input.indexOf("*/", from);
+    }
+    return nextCommentEnd;
+  }
+
+  /**
+   * Double or single quoted string, optionally prefixed by "~".
+   * Inside the quotes, a backslash is only allowed before an hexadecimal escape or a line break.
+   */
+  private int string(int start) {
+    int i = charAt(start) == '~' ? (start + 1) : start;
+    int end = quotedString(i, '"');
+    return end < 0 ? quotedString(i, '\'') : end;
+  }
+
+  private int quotedString(int start, char quote) {
+    if (charAt(start) != quote) {
+      return -1;
+    }
+    int i = start + 1;
+    while (i < length) {
+      char c = input.charAt(i);
+      if (c == quote) {
+        return i + 1;
+      } else if (c == '\\') {
+        char next = charAt(i + 1);
+        if (isHexDigit(next)) {
+          i = escape(i);
+        } else if (next == '\r') {
+          i += charAt(i + 2) == '\n' ? 3 : 2;
+        } else if (next == '\n' || next == '\f') {
+          i += 2;
+        } else {
+          return -1;
+        }
+      } else if (isNewLine(c)) {
+        return -1;
+      } else {
+        i++;
+      }
+    }
+    return -1;
+  }
+
+  private int atIdentifier(int start) {
+    int i = start;
+    while (charAt(i) == '@') {
+      i++;
+    }
+    return i == start ? -1 : identifier(i);
+  }
+
+  private int prefixedIdentifier(int start, char prefix) {
+    if (charAt(start) != prefix) {
+      return -1;
+    }
+    int end = nameChars(start + 1);
+    return end == start + 1 ? -1 : end;
+  }
+
+  private int identifier(int start) {
+    int i = charAt(start) == '-' ? (start + 1) : start;
+    char c = charAt(i);
+    int end;
+    if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_') {
+      end = i + 1;
+    } else {
+      end = nonAsciiOrEscape(i);
+    }
+    return end < 0 ? -1 : nameChars(end);
+  }
+
+  private int nameChars(int start) {
+    int i = start;
+    while (i < length) {
+      char c = input.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+        i++;
+      } else {
+        int end = nonAsciiOrEscape(i);
+        if (end < 0) {
+          break;
+        }
+        i = end;
+      }
+    }
+    return i;
+  }
+
+  private int nonAsciiOrEscape(int start) {
+    if (start >= length) {
+      return -1;
+    }
+    char c = input.charAt(start);
+    if (c > 0x7F) {
+      // a supplementary character is a single code point
+      boolean surrogatePair = Character.isHighSurrogate(c) && Character.isLowSurrogate(charAt(start + 1));
+      return surrogatePair ? (start + 2) : (start + 1);
+    }
+    if (c == '\\' && isHexDigit(charAt(start + 1))) {
+      return escape(start);
+    }
+    return -1;
+  }
+
+  /**
+   * Backslash followed by 1 to 6 hexadecimal digits and an optional whitespace
+   */
+  private int escape(int start) {
+    int i = start + 1;
+    while (i < length && i <= start + 6 && isHexDigit(input.charAt(i))) {
+      i++;
+    }
+    if (isWhitespace(charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Optional sign ("+", "-" or "|"), integer or decimal, optional lowercase unit or "%"
+   */
+  private int number(int start) {
+    char c = charAt(start);
+    int i = (c == '+' || c == '-' || c == '|') ? (start + 1) : start;
+    if (isDigit(charAt(i))) {
+      i = digits(i);
+      if (charAt(i) == '.' && isDigit(charAt(i + 1))) {
+        i = digits(i + 1);
+      }
+    } else if (charAt(i) == '.' && isDigit(charAt(i + 1))) {
+      i = digits(i + 1);
+    } else {
+      return -1;
+    }
+    if (charAt(i) == '%') {
+      return i + 1;
+    }
+    while (charAt(i) >= 'a' && charAt(i) <= 'z') {
+      i++;
+    }
+    return i;
+  }
+
+  private boolean isHexDigits(int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (!isHexDigit(input.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int digits(int start) {
+    int i = start;
+    while (isDigit(charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * @return the char at the given index, or 0 after the end of the input
+   */
+  private char charAt(int index) {
+    return index < length ? input.charAt(index) : 0;
+  }
+
+  private static boolean isPunctuator(char c) {
+    switch (c) {
+      case '!':
+      case ':':
+      case ',':
+      case ';':
+      case '%':
+      case '&':
+      case '+':
+      case '#':
+      case '*':
+      case '-':
+      case '.':
+      case '/':
+      case '=':
+      case '>':
+      case '(':
+      case ')':
+      case '[':
+      case ']':
+      case '{':
+      case '}':
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isHexDigit(char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  private static boolean isNewLine(char c) {
+    return c == '\n' || c == '\r' || c == '\f';
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || isNewLine(c);
+  }
+}
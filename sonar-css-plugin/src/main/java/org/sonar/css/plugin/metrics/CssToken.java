@@ -19,10 +19,6 @@
  */
 package org.sonar.css.plugin.metrics;
 
-import com.sonar.sslr.api.Token;
-import com.sonar.sslr.api.TokenType;
-import org.sonarsource.analyzer.commons.TokenLocation;
-
 public class CssToken {
   CssTokenType type;
   String text;
@@ -31,15 +27,12 @@ public class CssToken {
   Integer endLine;
   Integer endColumn;
 
-  public CssToken(Token token) {
-    TokenType tokenType = token.getType();
-    this.type = (CssTokenType)tokenType;
-    this.text = token.getValue();
-
-    TokenLocation tokenLocation = new TokenLocation(token.getLine(), token.getColumn(), token.getValue());
-    this.startLine = tokenLocation.startLine();
-    this.startColumn = tokenLocation.startLineOffset();
-    this.endLine = tokenLocation.endLine();
-    this.endColumn = tokenLocation.endLineOffset();
+  public CssToken(CssTokenType type, String text, int startLine, int startColumn, int endLine, int endColumn) {
+    this.type = type;
+    this.text = text;
+    this.startLine = startLine;
+    this.startColumn = startColumn;
+    this.endLine = endLine;
+    this.endColumn = endColumn;
   }
 }
@@ -20,9 +20,16 @@
 package org.sonar.css.plugin.metrics;
 
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.sensor.Sensor;
@@ -36,15 +43,22 @@ import org.sonar.api.measures.FileLinesContextFactory;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 import org.sonar.css.plugin.CssLanguage;
+import org.sonar.css.plugin.FileContentCache;
 
 public class MetricSensor implements Sensor {
 
   private static final Logger LOG = Loggers.get(MetricSensor.class);
+  private static final TypeOfText[] TYPES_OF_TEXT = TypeOfText.values();
+  // internal property to set the number of threads computing metrics, by default files are processed on the sensor thread
+  static final String THREADS_PROPERTY = "sonar.css.metrics.threads";
 
   private final FileLinesContextFactory fileLinesContextFactory;
+  private final FileContentCache fileContentCache;
 
-  public MetricSensor(FileLinesContextFactory fileLinesContextFactory) {
+  public MetricSensor(FileLinesContextFactory fileLinesContextFactory, FileContentCache fileContentCache) {
     this.fileLinesContextFactory = fileLinesContextFactory;
+    this.fileContentCache = fileContentCache;
+    fileContentCache.addReader();
   }
 
   @Override
@@ -56,102 +70,204 @@ public class MetricSensor implements Sensor {
 
   @Override
   public void execute(SensorContext context) {
+    try {
+      computeAndSaveMetrics(context);
+    } finally {
+      fileContentCache.readerFinished();
+    }
+  }
+
+  private void computeAndSaveMetrics(SensorContext context) {
     FileSystem fileSystem = context.fileSystem();
     Iterable<InputFile> inputFiles = fileSystem.inputFiles(fileSystem.predicates().hasLanguage(CssLanguage.KEY));
 
+    int threads = Math.max(1, context.config().getInt(THREADS_PROPERTY).orElse(1));
+    if (threads > 1) {
+      executeInParallel(context, inputFiles, threads);
+      return;
+    }
+
     Tokenizer tokenizer = new Tokenizer();
 
     for (InputFile file : inputFiles) {
       try {
-        List<CssToken> tokenList = tokenizer.tokenize(file.contents());
-
-        saveHighlights(context, file, tokenList);
-        saveLineTypes(context, file, tokenList);
-
+        save(context, file, computeMetrics(tokenizer, file));
       } catch (IOException e) {
-        LOG.error(String.format("Failed to read file '%s'", file.toString()), e);
+        logReadError(file, e);
       }
     }
   }
 
-  private static void saveHighlights(SensorContext context, InputFile file, List<CssToken> tokenList) {
-    NewHighlighting highlighting = context.newHighlighting().onFile(file);
+  /**
+   * Metrics are computed on {@code threads} threads, each of them using its own tokenizer,
+   * and saved on the sensor thread in the order of {@code inputFiles}.
+   */
+  private void executeInParallel(SensorContext context, Iterable<InputFile> inputFiles, int threads) {
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new MetricsThreadFactory());
+    ThreadLocal<Tokenizer> tokenizers = ThreadLocal.withInitial(Tokenizer::new);
+    // bounds the number of computed metrics waiting to be saved
+    int maxPendingFiles = threads * 2;
+    Deque<PendingMetrics> pendingMetrics = new ArrayDeque<>();
+    try {
+      for (InputFile file : inputFiles) {
+        if (pendingMetrics.size() == maxPendingFiles) {
+          savePendingMetrics(context, pendingMetrics.removeFirst());
+        }
+        pendingMetrics.addLast(new PendingMetrics(file, executor.submit(() -> computeMetrics(tokenizers.get(), file))));
+      }
+      while (!pendingMetrics.isEmpty()) {
+        savePendingMetrics(context, pendingMetrics.removeFirst());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 
-    for (int i = 0; i < tokenList.size(); i++) {
-      CssToken currentToken = tokenList.get(i);
-      CssToken nextToken = i + 1 < tokenList.size() ? tokenList.get(i + 1) : null;
-
-      TypeOfText highlightingType = null;
-      switch (currentToken.type) {
-        case COMMENT:
-          highlightingType = TypeOfText.COMMENT;
-          break;
-
-        case STRING:
-          highlightingType = TypeOfText.STRING;
-          break;
-
-        case NUMBER:
-          highlightingType = TypeOfText.CONSTANT;
-          break;
-
-        case AT_IDENTIFIER:
-          highlightingType = TypeOfText.ANNOTATION;
-          break;
-
-        case DOLLAR_IDENTIFIER:
-          highlightingType = TypeOfText.KEYWORD;
-          break;
-
-        case HASH_IDENTIFIER:
-          if (currentToken.text.matches("^#[0-9a-fA-F]+$")) {
-            highlightingType = TypeOfText.CONSTANT;
-          } else {
-            highlightingType = TypeOfText.KEYWORD;
-          }
-          break;
-
-        case IDENTIFIER:
-          // We want to highlight the property key of a css/scss/less file and as the tokenizer is putting the ':' into another token
-          // we need to look for identifier followed by a PUNCTUATOR token with text ':'.
-          if (nextToken != null && nextToken.text.equals(":")) {
-            highlightingType = TypeOfText.KEYWORD_LIGHT;
-          }
-          break;
-
-        default:
-          highlightingType = null;
+  private void savePendingMetrics(SensorContext context, PendingMetrics pendingMetrics) {
+    InputFile file = pendingMetrics.file;
+    FileMetrics metrics;
+    try {
+      metrics = pendingMetrics.metrics.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while computing metrics of " + file, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        logReadError(file, (IOException) e.getCause());
+        return;
       }
+      throw new IllegalStateException("Failure while computing metrics of " + file, e.getCause());
+    }
+    save(context, file, metrics);
+  }
+
+  private static void logReadError(InputFile file, IOException e) {
+    LOG.error(String.format("Failed to read file '%s'", file.toString()), e);
+  }
 
+  /**
+   * Does not use the sensor context, so that it can be called from any thread
+   */
+  private FileMetrics computeMetrics(Tokenizer tokenizer, InputFile file) throws IOException {
+    TokenBuffer tokens = tokenizer.scan(fileContentCache.contents(file));
+    FileMetrics metrics = new FileMetrics(tokens.size(), file.lines());
+    for (int i = 0; i < tokens.size(); i++) {
+      TypeOfText highlightingType = highlightingType(tokens, i);
       if (highlightingType != null) {
-        highlighting.highlight(currentToken.startLine, currentToken.startColumn, currentToken.endLine, currentToken.endColumn, highlightingType);
+        metrics.addHighlighting(tokens.startLine(i), tokens.startColumn(i), tokens.endLine(i), tokens.endColumn(i), highlightingType);
+      }
+      // collect line types
+      if (tokens.type(i) == CssTokenType.COMMENT) {
+        metrics.linesOfComment.set(tokens.startLine(i), tokens.endLine(i) + 1);
+      } else {
+        metrics.linesOfCode.set(tokens.startLine(i), tokens.endLine(i) + 1);
       }
     }
-
-    highlighting.save();
+    return metrics;
   }
 
-  private void saveLineTypes(SensorContext context, InputFile file, List<CssToken> tokenList) {
-    // collect line types
-    Set<Integer> linesOfCode = new HashSet<>();
-    Set<Integer> linesOfComment = new HashSet<>();
+  @Nullable
+  private static TypeOfText highlightingType(TokenBuffer tokens, int i) {
+    switch (tokens.type(i)) {
+      case COMMENT:
+        return TypeOfText.COMMENT;
+
+      case STRING:
+        return TypeOfText.STRING;
+
+      case NUMBER:
+        return TypeOfText.CONSTANT;
 
-    for (CssToken token : tokenList) {
-      for (int line = token.startLine; line <= token.endLine; line++) {
-        if (token.type.equals(CssTokenType.COMMENT)) {
-          linesOfComment.add(line);
+      case AT_IDENTIFIER:
+        return TypeOfText.ANNOTATION;
+
+      case DOLLAR_IDENTIFIER:
+        return TypeOfText.KEYWORD;
+
+      case HASH_IDENTIFIER:
+        if (tokens.isHexColor(i)) {
+          return TypeOfText.CONSTANT;
         } else {
-          linesOfCode.add(line);
+          return TypeOfText.KEYWORD;
         }
-      }
+
+      case IDENTIFIER:
+        // We want to highlight the property key of a css/scss/less file and as the tokenizer is putting the ':' into another token
+        // we need to look for identifier followed by a PUNCTUATOR token with text ':'.
+        if (i + 1 < tokens.size() && tokens.textEquals(i + 1, ':')) {
+          return TypeOfText.KEYWORD_LIGHT;
+        }
+        return null;
+
+      default:
+        return null;
+    }
+  }
+
+  private void save(SensorContext context, InputFile file, FileMetrics metrics) {
+    NewHighlighting highlighting = context.newHighlighting().onFile(file);
+    int[] ranges = metrics.highlightings;
+    for (int i = 0; i < metrics.highlightingsSize; i += FileMetrics.HIGHLIGHTING_SIZE) {
+      highlighting.highlight(ranges[i], ranges[i + 1], ranges[i + 2], ranges[i + 3], TYPES_OF_TEXT[ranges[i + 4]]);
     }
+    highlighting.save();
 
-    context.<Integer>newMeasure().on(file).forMetric(CoreMetrics.NCLOC).withValue(linesOfCode.size()).save();
-    context.<Integer>newMeasure().on(file).forMetric(CoreMetrics.COMMENT_LINES).withValue(linesOfComment.size()).save();
+    BitSet linesOfCode = metrics.linesOfCode;
+    context.<Integer>newMeasure().on(file).forMetric(CoreMetrics.NCLOC).withValue(linesOfCode.cardinality()).save();
+    context.<Integer>newMeasure().on(file).forMetric(CoreMetrics.COMMENT_LINES).withValue(metrics.linesOfComment.cardinality()).save();
 
     FileLinesContext fileLinesContext = fileLinesContextFactory.createFor(file);
-    linesOfCode.forEach(line -> fileLinesContext.setIntValue(CoreMetrics.NCLOC_DATA_KEY, line, 1));
+    for (int line = linesOfCode.nextSetBit(0); line >= 0; line = linesOfCode.nextSetBit(line + 1)) {
+      fileLinesContext.setIntValue(CoreMetrics.NCLOC_DATA_KEY, line, 1);
+    }
     fileLinesContext.save();
   }
 
+  private static class FileMetrics {
+    // start line, start column, end line, end column and TypeOfText ordinal of each highlighted token
+    static final int HIGHLIGHTING_SIZE = 5;
+
+    final int[] highlightings;
+    int highlightingsSize;
+    // indexed by line number, starting at 1
+    final BitSet linesOfCode;
+    final BitSet linesOfComment;
+
+    FileMetrics(int tokenCount, int lineCount) {
+      highlightings = new int[tokenCount * HIGHLIGHTING_SIZE];
+      linesOfCode = new BitSet(lineCount + 1);
+      linesOfComment = new BitSet(lineCount + 1);
+    }
+
+    void addHighlighting(int startLine, int startColumn, int endLine, int endColumn, TypeOfText type) {
+      highlightings[highlightingsSize] = startLine;
+      highlightings[highlightingsSize + 1] = startColumn;
+      highlightings[highlightingsSize + 2] = endLine;
+      highlightings[highlightingsSize + 3] = endColumn;
+      highlightings[highlightingsSize + 4] = type.ordinal();
+      highlightingsSize += HIGHLIGHTING_SIZE;
+    }
+  }
+
+  private static class PendingMetrics {
+    final InputFile file;
+    final Future<FileMetrics> metrics;
+
+    PendingMetrics(InputFile file, Future<FileMetrics> metrics) {
+      this.file = file;
+      this.metrics = metrics;
+    }
+  }
+
+  private static class MetricsThreadFactory implements ThreadFactory {
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "css-metrics-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
 }
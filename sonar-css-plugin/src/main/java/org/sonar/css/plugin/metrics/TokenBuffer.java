@@ -0,0 +1,127 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Tokens of a source, stored in parallel arrays to avoid allocating objects per token.
+ * The text of a token is not copied: it is kept as start and end offsets in the source.
+ * A buffer is reused from one source to the next one, so it must not be shared between threads.
+ */
+final class TokenBuffer {
+
+  private static final CssTokenType[] TYPES = CssTokenType.values();
+  private static final int INITIAL_CAPACITY = 256;
+
+  private String source = "";
+  private int size;
+  private int[] types = new int[INITIAL_CAPACITY];
+  private boolean[] hexColors = new boolean[INITIAL_CAPACITY];
+  private int[] startOffsets = new int[INITIAL_CAPACITY];
+  private int[] endOffsets = new int[INITIAL_CAPACITY];
+  private int[] startLines = new int[INITIAL_CAPACITY];
+  private int[] startColumns = new int[INITIAL_CAPACITY];
+  private int[] endLines = new int[INITIAL_CAPACITY];
+  private int[] endColumns = new int[INITIAL_CAPACITY];
+
+  void reset(String newSource) {
+    source = newSource;
+    size = 0;
+  }
+
+  void add(CssTokenType type, boolean hexColor, int startOffset, int endOffset, int startLine, int startColumn, int endLine, int endColumn) {
+    if (size == types.length) {
+      grow();
+    }
+    types[size] = type.ordinal();
+    hexColors[size] = hexColor;
+    startOffsets[size] = startOffset;
+    endOffsets[size] = endOffset;
+    startLines[size] = startLine;
+    startColumns[size] = startColumn;
+    endLines[size] = endLine;
+    endColumns[size] = endColumn;
+    size++;
+  }
+
+  private void grow() {
+    int capacity = types.length * 2;
+    types = Arrays.copyOf(types, capacity);
+    hexColors = Arrays.copyOf(hexColors, capacity);
+    startOffsets = Arrays.copyOf(startOffsets, capacity);
+    endOffsets = Arrays.copyOf(endOffsets, capacity);
+    startLines = Arrays.copyOf(startLines, capacity);
+    startColumns = Arrays.copyOf(startColumns, capacity);
+    endLines = Arrays.copyOf(endLines, capacity);
+    endColumns = Arrays.copyOf(endColumns, capacity);
+  }
+
+  int size() {
+    return size;
+  }
+
+  CssTokenType type(int index) {
+    return TYPES[types[index]];
+  }
+
+  /**
+   * @return true when the token is a {@link CssTokenType#HASH_IDENTIFIER} made only of hexadecimal digits, like "#fff"
+   */
+  boolean isHexColor(int index) {
+    return hexColors[index];
+  }
+
+  int startLine(int index) {
+    return startLines[index];
+  }
+
+  int startColumn(int index) {
+    return startColumns[index];
+  }
+
+  int endLine(int index) {
+    return endLines[index];
+  }
+
+  int endColumn(int index) {
+    return endColumns[index];
+  }
+
+  int length(int index) {
+    return endOffsets[index] - startOffsets[index];
+  }
+
+  char charAt(int index, int offsetInToken) {
+    return source.charAt(startOffsets[index] + offsetInToken);
+  }
+
+  boolean textEquals(int index, char c) {
+    return length(index) == 1 && charAt(index, 0) == c;
+  }
+
+  String text(int index) {
+    return source.substring(startOffsets[index], endOffsets[index]);
+  }
+
+  CssToken token(int index) {
+    return new CssToken(type(index), text(index), startLine(index), startColumn(index), endLine(index), endColumn(index));
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import javax.annotation.Nullable;
+import org.sonar.css.plugin.server.CssAnalyzerBridgeServer.Issue;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads issues sent by css-bundle server in the compact format, once negotiated on a {@link FramedTransport} connection.
+ * <ul>
+ *   <li>numbers are unsigned varints: 7 bits per byte, low bits first, the high bit being set on all bytes but the last</li>
+ *   <li>a string is a tag followed, unless it's a reference, by its length in bytes and its UTF-8 bytes.
+ *   The tag is 0 for a string sent once, 1 for a string added to the string table of the connection,
+ *   n + 2 to reference the n-th string of this table</li>
+ *   <li>issues are their number plus one, then for each issue its line, its rule key and its message.
+ *   0 means that the analysis of the file failed</li>
+ *   <li>the response to "analyze" is the issues of the file, the response to "analyze-batch" is, for each file,
+ *   its path and its issues</li>
+ * </ul>
+ */
+final class CompactIssueReader {
+
+  static final String FORMAT = "compact-issues-2";
+  private static final int NEW_ENTRY = 1;
+  private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+  private final List<String> strings;
+  private final InputStream input;
+  private int parsedFiles;
+
+  /**
+   * @param strings string table of the connection, filled while reading
+   */
+  CompactIssueReader(List<String> strings, InputStream input) {
+    this.strings = strings;
+    this.input = input;
+  }
+
+  /**
+   * @return null when the analysis failed
+   */
+  @Nullable
+  Issue[] readIssues() throws IOException {
+    Issue[] issues = readIssueList();
+    if (input.read() != -1) {
+      throw new IllegalStateException("Failed to parse response: unexpected content after issues");
+    }
+    return issues;
+  }
+
+  /**
+   * @param consumer called with the path and the issues of each file, before the next file is read,
+   *                 the issues being null when the analysis of the file failed
+   */
+  void readFileIssues(BiConsumer<String, Issue[]> consumer) throws IOException {
+    int firstByte = input.read();
+    while (firstByte != -1) {
+      String filePath = readString(readVarint(firstByte));
+      consumer.accept(filePath, readIssueList());
+      parsedFiles++;
+      firstByte = input.read();
+    }
+  }
+
+  @Nullable
+  private Issue[] readIssueList() throws IOException {
+    int header = readVarint(readByte());
+    if (header == 0) {
+      return null;
+    }
+    int count = header - 1;
+    Issue[] issues = new Issue[Math.min(count, 1024)];
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+      int line = readVarint(readByte());
+      String rule = readString(readVarint(readByte()));
+      String text = readString(readVarint(readByte()));
+      if (size == issues.length) {
+        issues = Arrays.copyOf(issues, size * 2);
+      }
+      issues[size] = new Issue(line, rule, text);
+      size++;
+    }
+    return size == issues.length ? issues : Arrays.copyOf(issues, size);
+  }
+
+  private String readString(int tag) throws IOException {
+    if (tag >= 2) {
+      int index = tag - 2;
+      if (index >= strings.size()) {
+        throw invalidResponse("unknown string #" + index);
+      }
+      return strings.get(index);
+    }
+    int length = readVarint(readByte());
+    if (length > MAX_STRING_LENGTH) {
+      throw invalidResponse("string of " + length + " bytes");
+    }
+    byte[] bytes = new byte[length];
+    int read = 0;
+    while (read < length) {
+      int count = input.read(bytes, read, length - read);
+      if (count < 0) {
+        throw invalidResponse("truncated string");
+      }
+      read += count;
+    }
+    String value = new String(bytes, UTF_8);
+    if (tag == NEW_ENTRY) {
+      strings.add(value);
+    }
+    return value;
+  }
+
+  private int readVarint(int firstByte) throws IOException {
+    int value = firstByte & 0x7F;
+    int current = firstByte;
+    int shift = 7;
+    while ((current & 0x80) != 0) {
+      current = readByte();
+      // the 5th byte is the last one, holding the 3 highest bits of a non-negative int
+      if (shift == 28 && current > 0x07) {
+        throw invalidResponse("varint too large");
+      }
+      value |= (current & 0x7F) << shift;
+      shift += 7;
+    }
+    return value;
+  }
+
+  private int readByte() throws IOException {
+    int value = input.read();
+    if (value < 0) {
+      throw invalidResponse("unexpected end of response");
+    }
+    return value;
+  }
+
+  private IllegalStateException invalidResponse(String reason) {
+    return new IllegalStateException("Failed to parse response after " + parsedFiles + " file(s): " + reason);
+  }
+}
@@ -20,24 +20,36 @@
 package org.sonar.css.plugin.server;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.net.InetAddress;
-import java.time.Duration;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
 import javax.annotation.Nullable;
-import okhttp3.HttpUrl;
-import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
-import okhttp3.RequestBody;
-import okhttp3.Response;
+import org.apache.commons.io.IOUtils;
 import org.sonar.api.Startable;
 import org.sonar.api.batch.sensor.SensorContext;
+import org.sonar.api.config.Configuration;
 import org.sonar.api.notifications.AnalysisWarnings;
 import org.sonar.api.scanner.ScannerSide;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 import org.sonar.api.utils.log.Profiler;
+import org.sonar.css.plugin.server.Transport.ServerResponse;
 import org.sonar.css.plugin.server.bundle.Bundle;
 import org.sonarsource.api.sonarlint.SonarLintSide;
 import org.sonarsource.nodejs.NodeCommand;
@@ -58,16 +70,23 @@ public class CssAnalyzerBridgeServer implements Startable {
   private static final int DEFAULT_TIMEOUT_SECONDS = 60;
   // internal property to set "--max-old-space-size" for Node process running this server
   private static final String MAX_OLD_SPACE_SIZE_PROPERTY = "sonar.css.node.maxspace";
+  // internal property to set the number of Node processes running this server, non-positive value means one process per available core
+  static final String WORKERS_PROPERTY = "sonar.css.node.workers";
+  // internal property to set how requests are sent to css-bundle server: "http" (default), "framed" or "unix"
+  static final String TRANSPORT_PROPERTY = "sonar.css.node.transport";
+  private static final String HTTP_TRANSPORT = "http";
   private static final Gson GSON = new Gson();
 
-  private final OkHttpClient client;
   private final NodeCommandBuilder nodeCommandBuilder;
   final int timeoutSeconds;
   private final Bundle bundle;
   private final AnalysisWarnings analysisWarnings;
   private final String hostAddress;
-  private int port;
-  private NodeCommand nodeCommand;
+  private volatile Transport transport;
+  private volatile List<ServerProcess> processes = Collections.emptyList();
+  // registered again in processes which are restarted
+  @Nullable
+  private volatile String registeredConfigFile;
   private final NodeDeprecationWarning deprecationWarning;
   private boolean failedToStart;
 
@@ -83,11 +102,8 @@ public class CssAnalyzerBridgeServer implements Startable {
     this.timeoutSeconds = timeoutSeconds;
     this.bundle = bundle;
     this.analysisWarnings = analysisWarnings;
-    this.client = new OkHttpClient.Builder()
-      .callTimeout(Duration.ofSeconds(timeoutSeconds))
-      .readTimeout(Duration.ofSeconds(timeoutSeconds))
-      .build();
     this.hostAddress = InetAddress.getLoopbackAddress().getHostAddress();
+    this.transport = new HttpTransport(timeoutSeconds, hostAddress);
     this.deprecationWarning = deprecationWarning;
   }
 
@@ -97,7 +113,6 @@ public class CssAnalyzerBridgeServer implements Startable {
 
   public void startServer(SensorContext context) throws IOException {
     PROFILER.startDebug("Starting server");
-    port = NetUtils.findOpenPort();
 
     File scriptFile = new File(bundle.startServerScript());
     if (!scriptFile.exists()) {
@@ -105,23 +120,73 @@ public class CssAnalyzerBridgeServer implements Startable {
     }
 
     initNodeCommand(context, scriptFile);
+    transport = createTransport(context);
 
-    LOG.debug("Starting Node.js process to start css-bundle server at port " + port);
-    nodeCommand.start();
+    int workers = workers(context.config(), Runtime.getRuntime().availableProcessors());
+    List<ServerProcess> newProcesses = new ArrayList<>(workers);
+    for (int i = 0; i < workers; i++) {
+      newProcesses.add(new ServerProcess(i));
+    }
+    processes = Collections.unmodifiableList(newProcesses);
+    for (ServerProcess process : newProcesses) {
+      startProcess(process);
+    }
 
     if (!waitServerToStart(timeoutSeconds * 1000)) {
       throw new NodeCommandException("Failed to start server (" + timeoutSeconds + "s timeout)");
     }
     PROFILER.stopDebug();
-    deprecationWarning.logNodeDeprecation(nodeCommand.getActualNodeVersion());
+    deprecationWarning.logNodeDeprecation(newProcesses.get(0).nodeCommand.getActualNodeVersion());
+  }
+
+  static int workers(Configuration config, int availableProcessors) {
+    int workers = config.getInt(WORKERS_PROPERTY).orElse(1);
+    return workers <= 0 ? availableProcessors : workers;
+  }
+
+  private Transport createTransport(SensorContext context) {
+    String transportName = context.config().get(TRANSPORT_PROPERTY).orElse(HTTP_TRANSPORT);
+    if (FramedTransport.NAME.equals(transportName)) {
+      return new FramedTransport(timeoutSeconds, hostAddress);
+    }
+    if (UnixSocketTransport.NAME.equals(transportName)) {
+      Path socketDir = context.fileSystem().workDir().toPath();
+      if (UnixSocketTransport.isSupported(socketDir)) {
+        return new UnixSocketTransport(timeoutSeconds, hostAddress, socketDir);
+      }
+      LOG.debug("Unix domain sockets are not available, requests to css-bundle server will use TCP connections");
+      return new FramedTransport(timeoutSeconds, hostAddress);
+    }
+    if (!HTTP_TRANSPORT.equals(transportName)) {
+      LOG.warn("Unknown value '{}' for property {}, requests to css-bundle server will use HTTP", transportName, TRANSPORT_PROPERTY);
+    }
+    return new HttpTransport(timeoutSeconds, hostAddress);
+  }
+
+  private void startProcess(ServerProcess process) throws IOException {
+    transport.reset(process);
+    transport.prepare(process);
+    NodeCommand nodeCommand;
+    // the builder is shared by all the processes, which may be restarted concurrently
+    synchronized (nodeCommandBuilder) {
+      nodeCommand = nodeCommandBuilder
+        .scriptArgs(transport.scriptArgs(process).toArray(new String[0]))
+        .build();
+    }
+    process.nodeCommand = nodeCommand;
+    LOG.debug("Starting Node.js process to start css-bundle server at " + process.address());
+    nodeCommand.start();
   }
 
+  /**
+   * @return true when all the processes are answering before the timeout
+   */
   boolean waitServerToStart(int timeoutMs) {
     int sleepStep = 100;
     long start = System.currentTimeMillis();
     try {
       Thread.sleep(sleepStep);
-      while (!isAlive()) {
+      while (processes.isEmpty() || !processes.stream().allMatch(this::isAlive)) {
         if (System.currentTimeMillis() - start > timeoutMs) {
           return false;
         }
@@ -133,7 +198,7 @@ public class CssAnalyzerBridgeServer implements Startable {
     return true;
   }
 
-  private void initNodeCommand(SensorContext context, File scriptFile) throws IOException {
+  private void initNodeCommand(SensorContext context, File scriptFile) {
     nodeCommandBuilder
       .outputConsumer(message -> {
         if (message.startsWith("DEBUG")) {
@@ -147,14 +212,11 @@ public class CssAnalyzerBridgeServer implements Startable {
       .minNodeVersion(10)
       .configuration(context.config())
       .script(scriptFile.getAbsolutePath())
-      .pathResolver(bundle)
-      .scriptArgs(String.valueOf(port), hostAddress);
+      .pathResolver(bundle);
 
     context.config()
       .getInt(MAX_OLD_SPACE_SIZE_PROPERTY)
       .ifPresent(nodeCommandBuilder::maxOldSpaceSize);
-
-    nodeCommand = nodeCommandBuilder.build();
   }
 
   /**
@@ -196,23 +258,182 @@ public class CssAnalyzerBridgeServer implements Startable {
     throwFailFast(context, e);
   }
 
+  /**
+   * @return null when the server failed to analyze the file, which is not the same as a file without issues
+   */
+  @Nullable
   public Issue[] analyze(Request request) throws IOException {
     String json = GSON.toJson(request);
-    return parseResponse(request(json));
+    return request("analyze", json, response -> {
+      CompactIssueReader compactIssues = response.compactIssues();
+      return compactIssues != null ? compactIssues.readIssues() : parseResponse(IOUtils.toString(response.reader()));
+    });
+  }
+
+  /**
+   * Analyzes several files with a single call to the server.
+   *
+   * @return issues keyed by {@link Request#filePath}, null when the server failed to analyze the file,
+   * files are missing when the process died while answering
+   */
+  public Map<String, Issue[]> analyzeBatch(List<Request> requests) throws IOException {
+    Map<String, Issue[]> issuesPerFile = new LinkedHashMap<>();
+    analyzeBatch(requests, issuesPerFile::put);
+    return issuesPerFile;
+  }
+
+  /**
+   * Analyzes several files with a single call to the server. The server streams the issues of each file as soon as
+   * the file is analyzed, and {@code consumer} receives them while the other files are still being analyzed.
+   * When the process dies while answering, it's restarted and the files missing from its response are not analyzed:
+   * {@code consumer} is not called for them, the caller has to send them again.
+   *
+   * @param consumer called with {@link Request#filePath} and the issues of the file, in the order of completion,
+   *                 the issues being null when the server failed to analyze the file
+   */
+  public void analyzeBatch(List<Request> requests, BiConsumer<String, Issue[]> consumer) throws IOException {
+    String json = GSON.toJson(requests);
+    ServerProcess process = acquireProcess();
+    try (ServerResponse response = execute(process, "analyze-batch", json)) {
+      CompactIssueReader compactIssues = response.compactIssues();
+      if (compactIssues != null) {
+        compactIssues.readFileIssues(consumer);
+      } else {
+        parseStreamedResponse(response.reader(), consumer);
+      }
+    } catch (IOException | IllegalStateException e) {
+      // the issues already received are kept, sending the whole batch again would duplicate them
+      if (!restartIfDead(process)) {
+        throw e;
+      }
+      LOG.debug("Response of " + process + " was interrupted, files missing from it were not analyzed", e);
+    } finally {
+      process.pendingRequests.decrementAndGet();
+    }
+  }
+
+  /**
+   * Has each server process load the stylelint configuration once, so that it's not loaded again for each analyzed file.
+   *
+   * @return the handle to set in {@link Request#configHandle}, null when the configuration could not be registered
+   */
+  @Nullable
+  public String registerConfig(String configFile) throws IOException {
+    registeredConfigFile = configFile;
+    Set<String> handles = new HashSet<>();
+    for (ServerProcess process : processes) {
+      handles.add(registerConfig(process, configFile));
+    }
+    // every process returns the same handle for the same configuration
+    if (handles.size() != 1 || handles.contains("")) {
+      return null;
+    }
+    return handles.iterator().next();
+  }
+
+  /**
+   * @return the handle, empty when the process can't register the configuration
+   */
+  private String registerConfig(ServerProcess process, String configFile) throws IOException {
+    String json = GSON.toJson(Collections.singletonMap("configFile", configFile));
+    try (ServerResponse response = transport.send(process, "config", json)) {
+      return IOUtils.toString(response.reader()).trim();
+    }
+  }
+
+  /**
+   * Requests keep referencing the handle returned by the former process, which is the same as long as the configuration
+   * file did not change. Otherwise, the server loads the configuration file for each request.
+   */
+  private void reregisterConfig(ServerProcess process) {
+    String configFile = registeredConfigFile;
+    if (configFile != null) {
+      try {
+        registerConfig(process, configFile);
+      } catch (IOException e) {
+        LOG.debug("Failed to register configuration in restarted " + process, e);
+      }
+    }
+  }
+
+  /**
+   * Picks the process with the fewest pending requests
+   */
+  private ServerProcess acquireProcess() {
+    List<ServerProcess> currentProcesses = processes;
+    if (currentProcesses.isEmpty()) {
+      throw new IllegalStateException("css-bundle server is not started");
+    }
+    ServerProcess selected = currentProcesses.get(0);
+    for (ServerProcess process : currentProcesses) {
+      if (process.pendingRequests.get() < selected.pendingRequests.get()) {
+        selected = process;
+      }
+    }
+    selected.pendingRequests.incrementAndGet();
+    return selected;
+  }
+
+  private <T> T request(String endpoint, String json, ResponseReader<T> responseReader) throws IOException {
+    ServerProcess process = acquireProcess();
+    try (ServerResponse response = execute(process, endpoint, json)) {
+      return responseReader.read(response);
+    } finally {
+      process.pendingRequests.decrementAndGet();
+    }
+  }
+
+  /**
+   * Restarts the process and sends the request again when the process is dead. As the response is not yet received,
+   * sending the request again does not duplicate any result.
+   */
+  private ServerResponse execute(ServerProcess process, String endpoint, String json) throws IOException {
+    try {
+      return transport.send(process, endpoint, json);
+    } catch (IOException e) {
+      if (!restartIfDead(process)) {
+        throw e;
+      }
+      return transport.send(process, endpoint, json);
+    }
   }
 
-  private String request(String json) throws IOException {
-    okhttp3.Request request = new okhttp3.Request.Builder()
-      .url(url("analyze"))
-      .post(RequestBody.create(MediaType.get("application/json"), json))
-      .build();
+  /**
+   * @return true when the process was not answering and was restarted
+   */
+  private boolean restartIfDead(ServerProcess process) throws IOException {
+    synchronized (process) {
+      if (process.nodeCommand == null || isAlive(process)) {
+        return false;
+      }
+      LOG.warn("{} is not answering, restarting it", process);
+      startProcess(process);
+      if (!waitProcessToStart(process, timeoutSeconds * 1000)) {
+        throw new IllegalStateException("Failed to restart " + process + " (" + timeoutSeconds + "s timeout)");
+      }
+      reregisterConfig(process);
+      return true;
+    }
+  }
 
-    try (Response response = client.newCall(request).execute()) {
-      // in this case response.body() is never null (according to docs)
-      return response.body().string();
+  private boolean waitProcessToStart(ServerProcess process, int timeoutMs) {
+    int sleepStep = 100;
+    long start = System.currentTimeMillis();
+    try {
+      while (!isAlive(process)) {
+        if (System.currentTimeMillis() - start > timeoutMs) {
+          return false;
+        }
+        Thread.sleep(sleepStep);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
     }
+    return true;
   }
 
+  @Nullable
   private static Issue[] parseResponse(String result) {
     try {
       return GSON.fromJson(result, Issue[].class);
@@ -223,25 +444,51 @@ public class CssAnalyzerBridgeServer implements Startable {
     }
   }
 
-  public boolean isAlive() {
-    if (nodeCommand == null) {
-      return false;
+  /**
+   * Reads one JSON object per line, each of them being passed to {@code consumer} before the next line is read.
+   */
+  private static void parseStreamedResponse(Reader reader, BiConsumer<String, Issue[]> consumer) throws IOException {
+    JsonReader jsonReader = new JsonReader(reader);
+    // to read several top-level values
+    jsonReader.setLenient(true);
+    int parsedFiles = 0;
+    FileIssues fileIssues = nextFileIssues(jsonReader, parsedFiles);
+    while (fileIssues != null) {
+      consumer.accept(fileIssues.filePath, fileIssues.issues);
+      parsedFiles++;
+      fileIssues = nextFileIssues(jsonReader, parsedFiles);
     }
-    okhttp3.Request request = new okhttp3.Request.Builder()
-      .url(url("status"))
-      .get()
-      .build();
+  }
 
-    try (Response response = client.newCall(request).execute()) {
-      String body = response.body().string();
-      // in this case response.body() is never null (according to docs)
-      return "OK!".equals(body);
-    } catch (IOException e) {
+  @Nullable
+  private static FileIssues nextFileIssues(JsonReader jsonReader, int parsedFiles) throws IOException {
+    try {
+      if (jsonReader.peek() == JsonToken.END_DOCUMENT) {
+        return null;
+      }
+      return GSON.fromJson(jsonReader, FileIssues.class);
+    } catch (JsonParseException | MalformedJsonException | EOFException e) {
+      LOG.debug("Failed to parse response after " + parsedFiles + " file(s)");
+      throw new IllegalStateException("Failed to parse response (check DEBUG logs for the number of files received)", e);
+    }
+  }
+
+  /**
+   * @return true when at least one of the server processes is up and running
+   */
+  public boolean isAlive() {
+    return processes.stream().anyMatch(this::isAlive);
+  }
+
+  boolean isAlive(ServerProcess process) {
+    if (process.nodeCommand == null) {
       return false;
     }
+    return transport.isAlive(process);
   }
 
   public String getCommandInfo() {
+    NodeCommand nodeCommand = processes.isEmpty() ? null : processes.get(0).nodeCommand;
     if (nodeCommand == null) {
       return "Node.js command to start css-bundle server was not built yet.";
     } else {
@@ -260,38 +507,35 @@ public class CssAnalyzerBridgeServer implements Startable {
   }
 
   void clean() {
-    if (nodeCommand != null) {
-      callClose();
-      nodeCommand.waitFor();
-      nodeCommand = null;
+    for (ServerProcess process : processes) {
+      NodeCommand nodeCommand = process.nodeCommand;
+      if (nodeCommand != null) {
+        callClose(process);
+        nodeCommand.waitFor();
+        transport.reset(process);
+        process.nodeCommand = null;
+      }
     }
+    processes = Collections.emptyList();
+    registeredConfigFile = null;
   }
 
-  private void callClose() {
-    okhttp3.Request request = new okhttp3.Request.Builder()
-      .url(url("close"))
-      .post(RequestBody.create(MediaType.get("application/json"), ""))
-      .build();
-    try (Response response = client.newCall(request).execute()) {
-      // nothing to do here
+  void callClose(ServerProcess process) {
+    try {
+      transport.close(process);
     } catch (IOException e) {
       LOG.warn("Failed to close stylelint-bridge server", e);
     }
   }
 
-  private HttpUrl url(String endpoint) {
-    HttpUrl.Builder builder = new HttpUrl.Builder();
-    return builder
-      .scheme("http")
-      .host(hostAddress)
-      .port(port)
-      .addPathSegment(endpoint)
-      .build();
+  // for testing purposes
+  public void setPort(int port) {
+    processes.forEach(process -> process.port = port);
   }
 
   // for testing purposes
-  public void setPort(int port) {
-    this.port = port;
+  List<ServerProcess> processes() {
+    return processes;
   }
 
   private void reportAnalysisWarning(String message) {
@@ -304,20 +548,57 @@ public class CssAnalyzerBridgeServer implements Startable {
     public final String filePath;
     /**
      * The fileContent is sent only in the SonarLint context or when the encoding
-     * of the file is not utf-8. Otherwise, for performance reason, it's more efficient to
+     * of the file can't be decoded by the server. Otherwise, for performance reason, it's more efficient to
      * not have the fileContent and let the server getting it using filePath.
      */
     @Nullable
     public final String fileContent;
+    /**
+     * Node.js name of the encoding used by the server to read the file when fileContent is not sent, utf-8 when null
+     */
+    @Nullable
+    public final String fileEncoding;
+    /**
+     * The configFile is used by the server only when configHandle is null or unknown,
+     * for instance when the server did not support registering configurations.
+     */
     public final String configFile;
+    /**
+     * Handle returned by {@link CssAnalyzerBridgeServer#registerConfig(String)} for configFile
+     */
+    @Nullable
+    public final String configHandle;
 
     public Request(String filePath, @Nullable String fileContent, String configFile) {
+      this(filePath, fileContent, null, configFile);
+    }
+
+    public Request(String filePath, @Nullable String fileContent, @Nullable String fileEncoding, String configFile) {
+      this(filePath, fileContent, fileEncoding, configFile, null);
+    }
+
+    public Request(String filePath, @Nullable String fileContent, @Nullable String fileEncoding, String configFile,
+                   @Nullable String configHandle) {
       this.filePath = filePath;
       this.fileContent = fileContent;
+      this.fileEncoding = fileEncoding;
       this.configFile = configFile;
+      this.configHandle = configHandle;
     }
   }
 
+  @FunctionalInterface
+  private interface ResponseReader<T> {
+    T read(ServerResponse response) throws IOException;
+  }
+
+  private static class FileIssues {
+    String filePath;
+    // null when the analysis of the file failed
+    @Nullable
+    Issue[] issues;
+  }
+
   public static class Issue {
     public final Integer line;
     public final String rule;
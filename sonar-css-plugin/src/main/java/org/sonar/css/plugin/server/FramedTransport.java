@@ -0,0 +1,316 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.annotation.Nullable;
+import org.apache.commons.io.IOUtils;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Requests are sent as length-prefixed frames over persistent connections, without HTTP.
+ * A frame is the length of its content on 4 bytes (big-endian) followed by the content.
+ * A request is made of two frames, the endpoint and the JSON body, both encoded in UTF-8.
+ * A response is made of any number of frames, ended by an empty frame.
+ * Once a response is fully read, its connection is reused for the next requests to the same process,
+ * unless the process was reset in the meantime, for instance because it was restarted.
+ * When the server supports it, issues are sent on the connection in the format read by {@link CompactIssueReader}.
+ */
+class FramedTransport implements Transport {
+
+  private static final Logger LOG = Loggers.get(FramedTransport.class);
+  static final String NAME = "framed";
+  private static final String FORMAT_ENDPOINT = "format";
+  // endpoints answering with issues, which are sent in the compact format when it was negotiated
+  private static final Set<String> ISSUE_ENDPOINTS = new HashSet<>(Arrays.asList("analyze", "analyze-batch"));
+
+  final int timeoutMs;
+  final String hostAddress;
+  private final Map<ServerProcess, Queue<Connection>> idleConnections = new ConcurrentHashMap<>();
+
+  FramedTransport(int timeoutSeconds, String hostAddress) {
+    this.timeoutMs = timeoutSeconds * 1000;
+    this.hostAddress = hostAddress;
+  }
+
+  @Override
+  public List<String> scriptArgs(ServerProcess process) {
+    return Arrays.asList(String.valueOf(process.port), hostAddress, NAME);
+  }
+
+  @Override
+  public void prepare(ServerProcess process) throws IOException {
+    process.port = NetUtils.findOpenPort();
+  }
+
+  /**
+   * Opens a new connection to the process
+   */
+  Connection connect(ServerProcess process) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(hostAddress, process.port), timeoutMs);
+      socket.setSoTimeout(timeoutMs);
+      socket.setTcpNoDelay(true);
+      return new Connection(socket, socket.getInputStream(), socket.getOutputStream());
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public ServerResponse send(ServerProcess process, String endpoint, String json) throws IOException {
+    Connection connection = idleConnections(process).poll();
+    if (connection == null) {
+      connection = openConnection(process);
+    }
+    try {
+      connection.sendRequest(endpoint, json);
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+    return new FramedResponse(process, connection, endpoint);
+  }
+
+  /**
+   * Opens a connection and asks the server to send issues in the compact format on it, servers not supporting
+   * this format answer with an empty response and keep sending issues in JSON.
+   */
+  private Connection openConnection(ServerProcess process) throws IOException {
+    Queue<Connection> idleQueue = idleConnections(process);
+    Connection connection = connect(process);
+    connection.idleQueue = idleQueue;
+    try {
+      connection.sendRequest(FORMAT_ENDPOINT, CompactIssueReader.FORMAT);
+      if (CompactIssueReader.FORMAT.equals(IOUtils.toString(connection.responseStream, UTF_8))) {
+        connection.strings = new ArrayList<>();
+      }
+      return connection;
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public boolean isAlive(ServerProcess process) {
+    try (ServerResponse response = send(process, "status", "")) {
+      return "OK!".equals(IOUtils.toString(response.reader()));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public void close(ServerProcess process) throws IOException {
+    try (ServerResponse response = send(process, "close", "")) {
+      IOUtils.toString(response.reader());
+    } finally {
+      // the process can't stop while connections to it are open
+      reset(process);
+    }
+  }
+
+  @Override
+  public void reset(ServerProcess process) {
+    Queue<Connection> connections = idleConnections.remove(process);
+    if (connections != null) {
+      connections.forEach(Connection::close);
+    }
+  }
+
+  private Queue<Connection> idleConnections(ServerProcess process) {
+    return idleConnections.computeIfAbsent(process, p -> new ConcurrentLinkedQueue<>());
+  }
+
+  private class FramedResponse implements ServerResponse {
+    private final ServerProcess process;
+    private final Connection connection;
+    private final String endpoint;
+
+    FramedResponse(ServerProcess process, Connection connection, String endpoint) {
+      this.process = process;
+      this.connection = connection;
+      this.endpoint = endpoint;
+    }
+
+    @Override
+    public Reader reader() {
+      return new InputStreamReader(connection.responseStream, UTF_8);
+    }
+
+    @Nullable
+    @Override
+    public CompactIssueReader compactIssues() {
+      List<String> strings = connection.strings;
+      if (strings == null || !ISSUE_ENDPOINTS.contains(endpoint)) {
+        return null;
+      }
+      return new CompactIssueReader(strings, connection.responseStream);
+    }
+
+    @Override
+    public void close() {
+      Queue<Connection> idleQueue = connection.idleQueue;
+      if (!connection.responseEnded || idleQueue != idleConnections.get(process)) {
+        // the rest of the response would be read by the next request, or the connection is to a former process
+        connection.close();
+        return;
+      }
+      idleQueue.add(connection);
+      // when the process was reset while adding the connection
+      if (idleQueue != idleConnections.get(process) && idleQueue.remove(connection)) {
+        connection.close();
+      }
+    }
+  }
+
+  static class Connection implements Closeable {
+    private final Closeable channel;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final InputStream responseStream = new ResponseStream();
+    // idle connections of the process when the connection was opened, replaced when the process is reset
+    @Nullable
+    private Queue<Connection> idleQueue;
+    // string table of the compact format, null when issues are sent in JSON
+    @Nullable
+    private List<String> strings;
+    // bytes of the current frame not read yet
+    private int remaining;
+    private boolean responseEnded = true;
+
+    Connection(Closeable channel, InputStream input, OutputStream output) {
+      this.channel = channel;
+      this.input = new DataInputStream(new BufferedInputStream(input));
+      this.output = new DataOutputStream(new BufferedOutputStream(output));
+    }
+
+    /**
+     * Writes the request, then waits for the first frame of the response
+     */
+    void sendRequest(String endpoint, String json) throws IOException {
+      writeFrame(endpoint);
+      writeFrame(json);
+      output.flush();
+      responseEnded = false;
+      remaining = 0;
+      nextFrame();
+    }
+
+    private void writeFrame(String content) throws IOException {
+      byte[] bytes = content.getBytes(UTF_8);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+    }
+
+    private void nextFrame() throws IOException {
+      int length = input.readInt();
+      if (length < 0) {
+        throw new IOException("Invalid frame length: " + Integer.toUnsignedString(length));
+      }
+      remaining = length;
+      responseEnded = length == 0;
+    }
+
+    @Override
+    public void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.debug("Failed to close connection to css-bundle server", e);
+      }
+    }
+
+    /**
+     * Contents of the frames of the response, up to the empty frame
+     */
+    private class ResponseStream extends InputStream {
+
+      /**
+       * Called for each byte of issues in the compact format, reads from the buffered input without allocating
+       */
+      @Override
+      public int read() throws IOException {
+        if (!hasRemainingBytes()) {
+          return -1;
+        }
+        int read = input.read();
+        if (read < 0) {
+          throw new EOFException("Connection closed before the end of the response");
+        }
+        remaining--;
+        return read;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+          return 0;
+        }
+        if (!hasRemainingBytes()) {
+          return -1;
+        }
+        int read = input.read(buffer, offset, Math.min(length, remaining));
+        if (read < 0) {
+          throw new EOFException("Connection closed before the end of the response");
+        }
+        remaining -= read;
+        return read;
+      }
+
+      /**
+       * @return false when the response ended
+       */
+      private boolean hasRemainingBytes() throws IOException {
+        while (!responseEnded && remaining == 0) {
+          nextFrame();
+        }
+        return !responseEnded;
+      }
+    }
+  }
+}
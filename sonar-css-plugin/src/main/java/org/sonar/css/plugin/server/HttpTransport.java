@@ -0,0 +1,121 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Requests are sent with HTTP to the Express server of css-bundle.
+ */
+class HttpTransport implements Transport {
+
+  private final OkHttpClient client;
+  private final String hostAddress;
+
+  HttpTransport(int timeoutSeconds, String hostAddress) {
+    this.client = new OkHttpClient.Builder()
+      .callTimeout(Duration.ofSeconds(timeoutSeconds))
+      .readTimeout(Duration.ofSeconds(timeoutSeconds))
+      .build();
+    this.hostAddress = hostAddress;
+  }
+
+  @Override
+  public List<String> scriptArgs(ServerProcess process) {
+    return Arrays.asList(String.valueOf(process.port), hostAddress);
+  }
+
+  @Override
+  public void prepare(ServerProcess process) throws IOException {
+    process.port = NetUtils.findOpenPort();
+  }
+
+  @Override
+  public ServerResponse send(ServerProcess process, String endpoint, String json) throws IOException {
+    Response response = client.newCall(postRequest(process, endpoint, json)).execute();
+    return new ServerResponse() {
+      @Override
+      public Reader reader() {
+        // in this case response.body() is never null (according to docs)
+        return response.body().charStream();
+      }
+
+      @Override
+      public void close() {
+        response.close();
+      }
+    };
+  }
+
+  @Override
+  public boolean isAlive(ServerProcess process) {
+    Request request = new Request.Builder()
+      .url(url(process, "status"))
+      .get()
+      .build();
+
+    try (Response response = client.newCall(request).execute()) {
+      String body = response.body().string();
+      // in this case response.body() is never null (according to docs)
+      return "OK!".equals(body);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public void close(ServerProcess process) throws IOException {
+    try (Response response = client.newCall(postRequest(process, "close", "")).execute()) {
+      // nothing to do here
+    }
+  }
+
+  @Override
+  public void reset(ServerProcess process) {
+    // connections are pooled by address, nothing is bound to the process itself
+  }
+
+  private Request postRequest(ServerProcess process, String endpoint, String json) {
+    return new Request.Builder()
+      .url(url(process, endpoint))
+      .post(RequestBody.create(MediaType.get("application/json"), json))
+      .build();
+  }
+
+  private HttpUrl url(ServerProcess process, String endpoint) {
+    HttpUrl.Builder builder = new HttpUrl.Builder();
+    return builder
+      .scheme("http")
+      .host(hostAddress)
+      .port(process.port)
+      .addPathSegment(endpoint)
+      .build();
+  }
+}
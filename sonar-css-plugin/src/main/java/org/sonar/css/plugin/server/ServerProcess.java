@@ -0,0 +1,54 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.server;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.sonarsource.nodejs.NodeCommand;
+
+/**
+ * One Node.js process running css-bundle server, as managed by {@link CssAnalyzerBridgeServer}.
+ */
+class ServerProcess {
+
+  final int id;
+  final AtomicInteger pendingRequests = new AtomicInteger();
+  volatile int port;
+  // set when the process listens on a Unix domain socket rather than on a port
+  @Nullable
+  volatile Path socketPath;
+  @Nullable
+  volatile NodeCommand nodeCommand;
+
+  ServerProcess(int id) {
+    this.id = id;
+  }
+
+  String address() {
+    Path path = socketPath;
+    return path != null ? ("socket " + path) : ("port " + port);
+  }
+
+  @Override
+  public String toString() {
+    return "css-bundle server #" + id + " at " + address();
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * How {@link CssAnalyzerBridgeServer} talks to the css-bundle server run by a {@link ServerProcess}.
+ * Implementations are thread-safe: several requests can be sent at the same time to the same process.
+ */
+interface Transport {
+
+  /**
+   * @return the arguments of css-bundle server script making it listen for this transport
+   */
+  List<String> scriptArgs(ServerProcess process);
+
+  /**
+   * Chooses where the process will listen for requests, before the process is started
+   */
+  void prepare(ServerProcess process) throws IOException;
+
+  /**
+   * Sends the request and waits for the beginning of the response, so that a failure to reach the process
+   * is reported here rather than while reading the response.
+   */
+  ServerResponse send(ServerProcess process, String endpoint, String json) throws IOException;
+
+  boolean isAlive(ServerProcess process);
+
+  void close(ServerProcess process) throws IOException;
+
+  /**
+   * Called when the process is (re)started or stopped, to forget what was bound to the former process.
+   */
+  void reset(ServerProcess process);
+
+  interface ServerResponse extends Closeable {
+    Reader reader();
+
+    /**
+     * @return the reader of the issues when they are sent in the compact format, null when they are sent in JSON
+     */
+    @Nullable
+    default CompactIssueReader compactIssues() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import javax.annotation.Nullable;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Same frames as {@link FramedTransport}, sent over a Unix domain socket created in the work directory
+ * rather than over a TCP connection, so no port has to be allocated.
+ * Unix domain socket channels are only available since Java 16, so they are used through reflection.
+ */
+class UnixSocketTransport extends FramedTransport {
+
+  static final String NAME = "unix";
+  // "sun_path" of socket addresses is 104 bytes long on macOS and 108 on Linux, including the terminating null byte
+  private static final int MAX_SOCKET_PATH_LENGTH = 100;
+
+  @Nullable
+  private static final UnixSockets UNIX_SOCKETS = UnixSockets.load();
+
+  private final Path socketDir;
+
+  UnixSocketTransport(int timeoutSeconds, String hostAddress, Path socketDir) {
+    super(timeoutSeconds, hostAddress);
+    this.socketDir = socketDir;
+  }
+
+  /**
+   * @return false when the JVM can't open Unix domain socket channels, when Node.js can't listen on them (on Windows
+   * it listens on named pipes instead), or when socket paths in this directory would be too long
+   */
+  static boolean isSupported(Path socketDir) {
+    if (UNIX_SOCKETS == null || System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH).startsWith("windows")) {
+      return false;
+    }
+    return socketPath(socketDir, 9999).toAbsolutePath().toString().getBytes(UTF_8).length <= MAX_SOCKET_PATH_LENGTH;
+  }
+
+  private static Path socketPath(Path socketDir, int processId) {
+    return socketDir.resolve("css-bundle-" + processId + ".sock");
+  }
+
+  @Override
+  public List<String> scriptArgs(ServerProcess process) {
+    return Arrays.asList(String.valueOf(process.port), hostAddress, NAME, String.valueOf(process.socketPath));
+  }
+
+  @Override
+  public void prepare(ServerProcess process) throws IOException {
+    Path socketPath = socketPath(socketDir, process.id).toAbsolutePath();
+    // a socket file left by a process which was killed would prevent the new one from listening
+    Files.deleteIfExists(socketPath);
+    process.port = 0;
+    process.socketPath = socketPath;
+  }
+
+  @Override
+  Connection connect(ServerProcess process) throws IOException {
+    if (UNIX_SOCKETS == null) {
+      throw new IOException("Unix domain sockets are not available");
+    }
+    SocketChannel channel = UNIX_SOCKETS.open();
+    try {
+      channel.connect(UNIX_SOCKETS.address(socketPath(socketDir, process.id).toAbsolutePath()));
+      ChannelStreams streams = new ChannelStreams(channel, timeoutMs);
+      return new Connection(streams, streams.input, streams.output);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static class UnixSockets {
+    private final ProtocolFamily family;
+    private final Method open;
+    private final Method address;
+
+    private UnixSockets(ProtocolFamily family, Method open, Method address) {
+      this.family = family;
+      this.open = open;
+      this.address = address;
+    }
+
+    @Nullable
+    static UnixSockets load() {
+      try {
+        ProtocolFamily family = StandardProtocolFamily.valueOf("UNIX");
+        Method open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+        Method address = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+        return new UnixSockets(family, open, address);
+      } catch (ReflectiveOperationException | IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    SocketChannel open() throws IOException {
+      return (SocketChannel) invoke(open, family);
+    }
+
+    SocketAddress address(Path path) throws IOException {
+      return (SocketAddress) invoke(address, path);
+    }
+
+    private static Object invoke(Method method, Object argument) throws IOException {
+      try {
+        return method.invoke(null, argument);
+      } catch (InvocationTargetException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Failed to use Unix domain socket", e.getCause());
+      } catch (IllegalAccessException e) {
+        throw new IOException("Failed to use Unix domain socket", e);
+      }
+    }
+  }
+
+  /**
+   * Streams of a non-blocking channel, failing when the channel is not ready before the timeout
+   * (unlike TCP sockets, Unix domain socket channels have no "SO_TIMEOUT" option).
+   */
+  private static class ChannelStreams implements Closeable {
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final int timeoutMs;
+
+    final InputStream input = new InputStream() {
+      private final byte[] singleByte = new byte[1];
+
+      @Override
+      public int read() throws IOException {
+        return read(singleByte, 0, 1) < 0 ? -1 : (singleByte[0] & 0xFF);
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        return length == 0 ? 0 : ChannelStreams.this.read(ByteBuffer.wrap(buffer, offset, length));
+      }
+    };
+
+    final OutputStream output = new OutputStream() {
+      private final byte[] singleByte = new byte[1];
+
+      @Override
+      public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] buffer, int offset, int length) throws IOException {
+        ChannelStreams.this.write(ByteBuffer.wrap(buffer, offset, length));
+      }
+    };
+
+    ChannelStreams(SocketChannel channel, int timeoutMs) throws IOException {
+      this.channel = channel;
+      this.timeoutMs = timeoutMs;
+      channel.configureBlocking(false);
+      this.selector = Selector.open();
+      this.key = channel.register(selector, 0);
+    }
+
+    private int read(ByteBuffer buffer) throws IOException {
+      int read = channel.read(buffer);
+      while (read == 0) {
+        await(SelectionKey.OP_READ);
+        read = channel.read(buffer);
+      }
+      return read;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.write(buffer) == 0) {
+          await(SelectionKey.OP_WRITE);
+        }
+      }
+    }
+
+    private void await(int operation) throws IOException {
+      key.interestOps(operation);
+      if (selector.select(timeoutMs) == 0) {
+        throw new SocketTimeoutException("No answer from css-bundle server after " + timeoutMs + "ms");
+      }
+      selector.selectedKeys().clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        selector.close();
+      } finally {
+        channel.close();
+      }
+    }
+  }
+}
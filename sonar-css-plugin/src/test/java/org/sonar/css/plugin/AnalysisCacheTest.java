@@ -0,0 +1,220 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.sensor.internal.SensorContextTester;
+import org.sonar.css.plugin.server.CssAnalyzerBridgeServer.Issue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalysisCacheTest {
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  private SensorContextTester context;
+  private File configFile;
+  private File userHome;
+
+  @Before
+  public void setUp() throws IOException {
+    context = SensorContextTester.create(tmpDir.newFolder("base"));
+    context.fileSystem().setWorkDir(tmpDir.newFolder("work").toPath());
+    // default cache location
+    userHome = tmpDir.newFolder("userHome");
+    context.settings().setProperty("sonar.userHome", userHome.getAbsolutePath());
+    configFile = tmpDir.newFile("stylelintconfig.json");
+    Files.write(configFile.toPath(), "{\"rules\":{\"block-no-empty\":true}}".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void should_be_disabled_by_default() throws IOException {
+    AnalysisCache cache = AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+    assertThat(cache.isEnabled()).isFalse();
+    assertThat(cache.key(inputFile("file.css", "a {}"))).isNull();
+    cache.write("key", new Issue[0]);
+    assertThat(cache.read("key")).isNull();
+  }
+
+  @Test
+  public void should_store_issues_in_user_home() throws IOException {
+    context.settings().setProperty("sonar.css.analysis.cache", "true");
+    AnalysisCache cache = AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+    assertThat(cache.isEnabled()).isTrue();
+
+    String key = cache.key(inputFile("file.css", "a {}"));
+    assertThat(cache.read(key)).isNull();
+    cache.write(key, new Issue[] {new Issue(1, "block-no-empty", "Unexpected empty block")});
+
+    Issue[] issues = cache.read(key);
+    assertThat(issues).hasSize(1);
+    assertThat(issues[0].line).isEqualTo(1);
+    assertThat(issues[0].rule).isEqualTo("block-no-empty");
+    assertThat(issues[0].text).isEqualTo("Unexpected empty block");
+    assertThat(new File(userHome, "css/analysis-cache/" + key + ".json")).exists();
+  }
+
+  @Test
+  public void should_resolve_cache_path_from_base_directory() throws IOException {
+    context.settings().setProperty("sonar.css.analysis.cachePath", "css-cache");
+    AnalysisCache cache = AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+    String key = cache.key(inputFile("file.css", "a {}"));
+    cache.write(key, new Issue[0]);
+    assertThat(new File(context.fileSystem().baseDir(), "css-cache/" + key + ".json")).exists();
+  }
+
+  @Test
+  public void should_remove_unused_entries() throws IOException {
+    File cacheDir = tmpDir.newFolder("cache");
+    context.settings().setProperty("sonar.css.analysis.cachePath", cacheDir.getAbsolutePath());
+    AnalysisCache cache = AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+    String usedKey = cache.key(inputFile("file.css", "a {}"));
+    String unusedKey = cache.key(inputFile("file.css", "b {}"));
+    cache.write(usedKey, new Issue[0]);
+    cache.write(unusedKey, new Issue[0]);
+    long longAgo = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(40);
+    Files.setLastModifiedTime(cacheDir.toPath().resolve(usedKey + ".json"), FileTime.fromMillis(longAgo));
+    Files.setLastModifiedTime(cacheDir.toPath().resolve(unusedKey + ".json"), FileTime.fromMillis(longAgo));
+    // reading an entry marks it as used
+    assertThat(cache.read(usedKey)).isEmpty();
+
+    AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+    assertThat(cacheDir.toPath().resolve(usedKey + ".json")).exists();
+    assertThat(cacheDir.toPath().resolve(unusedKey + ".json")).doesNotExist();
+  }
+
+  @Test
+  public void should_not_remove_entries_when_max_age_is_not_positive() throws IOException {
+    File cacheDir = tmpDir.newFolder("cache");
+    Path entry = cacheDir.toPath().resolve("key.json");
+    Files.write(entry, "[]".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(entry, FileTime.fromMillis(0));
+
+    AnalysisCache.prune(cacheDir.toPath(), 0);
+    assertThat(entry).exists();
+    AnalysisCache.prune(cacheDir.toPath(), 1);
+    assertThat(entry).doesNotExist();
+  }
+
+  @Test
+  public void key_should_depend_on_content_extension_and_config() throws IOException {
+    context.settings().setProperty("sonar.css.analysis.cache", "true");
+    AnalysisCache cache = AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+    String key = cache.key(inputFile("file.css", "a {}"));
+
+    assertThat(cache.key(inputFile("dir/other.css", "a {}"))).isEqualTo(key);
+    assertThat(cache.key(inputFile("file.css", "b {}"))).isNotEqualTo(key);
+    assertThat(cache.key(inputFile("file.scss", "a {}"))).isNotEqualTo(key);
+
+    Files.write(configFile.toPath(), "{\"rules\":{}}".getBytes(StandardCharsets.UTF_8));
+    AnalysisCache otherConfigCache = AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+    assertThat(otherConfigCache.key(inputFile("file.css", "a {}"))).isNotEqualTo(key);
+  }
+
+  @Test
+  public void should_find_unchanged_files_by_path_in_incremental_mode() throws IOException {
+    context.settings().setProperty("sonar.css.analysis.incremental", "true");
+    AnalysisCache cache = AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+    assertThat(cache.isEnabled()).isTrue();
+
+    InputFile addedFile = inputFile("file.css", "a {}", InputFile.Status.ADDED);
+    String contentKey = cache.key(addedFile);
+    cache.write(addedFile, contentKey, new Issue[] {new Issue(1, "block-no-empty", "Unexpected empty block")});
+
+    // content is not used in the key of unchanged files
+    InputFile sameFile = inputFile("file.css", "a {}", InputFile.Status.SAME);
+    String pathKey = cache.key(sameFile);
+    assertThat(pathKey).isNotEqualTo(contentKey);
+    assertThat(cache.key(inputFile("file.css", "other content", InputFile.Status.SAME))).isEqualTo(pathKey);
+    assertThat(cache.read(sameFile, pathKey)).hasSize(1);
+    assertThat(cache.key(inputFile("other.css", "a {}", InputFile.Status.SAME))).isNotEqualTo(pathKey);
+
+    // path entry is updated when the content is found in the cache
+    InputFile changedFile = inputFile("file.css", "b {}", InputFile.Status.CHANGED);
+    cache.write(cache.key(changedFile), new Issue[0]);
+    assertThat(cache.read(changedFile, cache.key(changedFile))).isEmpty();
+    assertThat(cache.read(inputFile("file.css", "b {}", InputFile.Status.SAME), pathKey)).isEmpty();
+  }
+
+  @Test
+  public void should_not_restore_path_entry_stored_for_other_content() throws IOException {
+    context.settings().setProperty("sonar.css.analysis.incremental", "true");
+    AnalysisCache cache = AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+
+    // stored by the analysis of a pull request which modified the file
+    InputFile modifiedFile = inputFile("file.css", "a {}", InputFile.Status.CHANGED);
+    cache.write(modifiedFile, cache.key(modifiedFile), new Issue[] {new Issue(1, "block-no-empty", "Unexpected empty block")});
+
+    // unchanged in another pull request, against the reference branch
+    InputFile sameFile = inputFile("file.css", "b {}", InputFile.Status.SAME);
+    String pathKey = cache.key(sameFile);
+    assertThat(cache.read(sameFile, pathKey)).isNull();
+
+    cache.write(sameFile, pathKey, new Issue[0]);
+    assertThat(cache.read(sameFile, pathKey)).isEmpty();
+    assertThat(cache.read(inputFile("file.css", "a {}", InputFile.Status.SAME), pathKey)).isNull();
+  }
+
+  @Test
+  public void should_not_use_path_when_not_incremental() throws IOException {
+    context.settings().setProperty("sonar.css.analysis.cache", "true");
+    AnalysisCache cache = AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+    assertThat(cache.key(inputFile("file.css", "a {}", InputFile.Status.SAME)))
+      .isEqualTo(cache.key(inputFile("other.css", "a {}", InputFile.Status.SAME)));
+  }
+
+  @Test
+  public void should_ignore_corrupted_entry() throws IOException {
+    File cacheDir = tmpDir.newFolder("cache");
+    context.settings().setProperty("sonar.css.analysis.cachePath", cacheDir.getAbsolutePath());
+    AnalysisCache cache = AnalysisCache.create(context, configFile, new FileContentCache(context.config()));
+    String key = cache.key(inputFile("file.css", "a {}"));
+    Path entry = cacheDir.toPath().resolve(key + ".json");
+    Files.write(entry, "[{".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(cache.read(key)).isNull();
+  }
+
+  private InputFile inputFile(String relativePath, String contents) {
+    return inputFile(relativePath, contents, InputFile.Status.ADDED);
+  }
+
+  private InputFile inputFile(String relativePath, String contents, InputFile.Status status) {
+    return new TestInputFileBuilder("moduleKey", relativePath)
+      .setModuleBaseDir(context.fileSystem().baseDirPath())
+      .setCharset(StandardCharsets.UTF_8)
+      .setContents(contents)
+      .setStatus(status)
+      .build();
+  }
+}
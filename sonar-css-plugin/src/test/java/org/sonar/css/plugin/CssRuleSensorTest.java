@@ -27,6 +27,8 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -39,6 +41,7 @@ import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
 import org.sonar.api.batch.rule.CheckFactory;
 import org.sonar.api.batch.sensor.internal.DefaultSensorDescriptor;
 import org.sonar.api.batch.sensor.internal.SensorContextTester;
+import org.sonar.api.config.internal.MapSettings;
 import org.sonar.api.internal.SonarRuntimeImpl;
 import org.sonar.api.notifications.AnalysisWarnings;
 import org.sonar.api.utils.Version;
@@ -73,6 +76,7 @@ public class CssRuleSensorTest {
 
   private SensorContextTester context = SensorContextTester.create(BASE_DIR);
   private AnalysisWarnings analysisWarnings = mock(AnalysisWarnings.class);
+  private FileContentCache fileContentCache = new FileContentCache(new MapSettings().asConfig());
   private CssAnalyzerBridgeServer cssAnalyzerBridgeServer;
   private CssRuleSensor sensor;
 
@@ -80,7 +84,7 @@ public class CssRuleSensorTest {
   public void setUp() {
     context.fileSystem().setWorkDir(tmpDir.getRoot().toPath());
     cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
-    sensor = new CssRuleSensor(CHECK_FACTORY, cssAnalyzerBridgeServer, analysisWarnings);
+    sensor = new CssRuleSensor(CHECK_FACTORY, cssAnalyzerBridgeServer, fileContentCache, analysisWarnings);
   }
 
   @After
@@ -124,6 +128,213 @@ public class CssRuleSensorTest {
     verifyZeroInteractions(analysisWarnings);
   }
 
+  @Test
+  public void should_normalize_messages() {
+    assertThat(CssRuleSensor.normalizeMessage("some message (color-no-invalid-hex)")).isEqualTo("some message ");
+    assertThat(CssRuleSensor.normalizeMessage("a(b)")).isEqualTo("a");
+    assertThat(CssRuleSensor.normalizeMessage("some message")).isEqualTo("some message");
+    assertThat(CssRuleSensor.normalizeMessage("some message ()")).isEqualTo("some message ()");
+    assertThat(CssRuleSensor.normalizeMessage("some message (Rule)")).isEqualTo("some message (Rule)");
+    assertThat(CssRuleSensor.normalizeMessage("(rule)")).isEqualTo("(rule)");
+    assertThat(CssRuleSensor.normalizeMessage("some\nmessage (rule)")).isEqualTo("some\nmessage (rule)");
+    assertThat(CssRuleSensor.normalizeMessage("")).isEmpty();
+  }
+
+  @Test
+  public void test_execute_with_concurrent_requests() {
+    context.settings().setProperty("sonar.css.analysis.concurrentRequests", "3");
+    for (int i = 0; i < 10; i++) {
+      addInputFile("dir" + i + "/file.css");
+    }
+    addInputFile("file-with-rule-id-message.css");
+    sensor.execute(context);
+
+    List<InputFile> expectedOrder = new ArrayList<>();
+    context.fileSystem().inputFiles(context.fileSystem().predicates().all()).forEach(expectedOrder::add);
+    assertThat(context.allIssues()).hasSize(11);
+    assertThat(context.allIssues()).extracting("primaryLocation.component").containsExactlyElementsOf(expectedOrder);
+    assertThat(logTester.logs(LoggerLevel.ERROR)).isEmpty();
+  }
+
+  @Test
+  public void test_execute_with_batches() {
+    context.settings().setProperty("sonar.css.analysis.batchSize", "4");
+    context.settings().setProperty("sonar.css.analysis.concurrentRequests", "2");
+    for (int i = 0; i < 9; i++) {
+      addInputFile("dir" + i + "/file.css");
+    }
+    addInputFile("file-with-rule-id-message.css");
+    addInputFile("empty.css");
+    sensor.execute(context);
+
+    List<InputFile> expectedOrder = new ArrayList<>();
+    context.fileSystem().inputFiles(context.fileSystem().predicates().all()).forEach(inputFile -> {
+      if (!"empty.css".equals(inputFile.filename())) {
+        expectedOrder.add(inputFile);
+      }
+    });
+    assertThat(context.allIssues()).extracting("primaryLocation.component").containsExactlyElementsOf(expectedOrder);
+    assertThat(context.allIssues()).extracting("primaryLocation.message")
+      .containsOnly("some message", "Unexpected empty block");
+    assertThat(logTester.logs(LoggerLevel.DEBUG)).contains("Found 0 issue(s)");
+    assertThat(logTester.logs(LoggerLevel.ERROR)).isEmpty();
+  }
+
+  @Test
+  public void should_analyze_again_files_missing_from_batch_response() {
+    context.settings().setProperty("sonar.css.analysis.batchSize", "3");
+    addInputFile("file.css");
+    addInputFile("missing-from-batch.css");
+    addInputFile("file-with-rule-id-message.css");
+    sensor.execute(context);
+
+    assertThat(context.allIssues()).hasSize(3);
+    assertThat(String.join("\n", logTester.logs(LoggerLevel.WARN)))
+      .matches("(?s).*No issues received for \\S*missing-from-batch\\.css, sending it again to css-bundle server.*");
+    assertThat(logTester.logs(LoggerLevel.ERROR)).isEmpty();
+  }
+
+  @Test
+  public void should_analyze_again_files_of_batch_interrupted_by_process_exit() {
+    context.settings().setProperty("sonar.css.analysis.batchSize", "3");
+    addInputFile("file.css");
+    addInputFile("exit-during-batch.css");
+    addInputFile("file-with-rule-id-message.css");
+    sensor.execute(context);
+
+    assertThat(context.allIssues()).hasSize(3);
+    assertThat(String.join("\n", logTester.logs(LoggerLevel.WARN)))
+      .matches("(?s).*is not answering, restarting it.*")
+      .matches("(?s).*No issues received for \\S*exit-during-batch\\.css, sending it again to css-bundle server.*");
+    assertThat(logTester.logs(LoggerLevel.ERROR).stream().noneMatch(log -> log.startsWith("Failure during CSS analysis"))).isTrue();
+  }
+
+  @Test
+  public void test_execute_with_cache() throws IOException {
+    File cacheDir = tmpDir.newFolder("cache");
+    context.settings().setProperty("sonar.css.analysis.cachePath", cacheDir.getAbsolutePath());
+    addInputFile("file.css");
+    sensor.execute(context);
+    assertThat(context.allIssues()).hasSize(1);
+    assertThat(cacheDir.listFiles()).hasSize(1);
+
+    logTester.clear();
+    context = SensorContextTester.create(BASE_DIR);
+    context.fileSystem().setWorkDir(tmpDir.getRoot().toPath());
+    context.settings().setProperty("sonar.css.analysis.cachePath", cacheDir.getAbsolutePath());
+    context.settings().setProperty("sonar.css.analysis.batchSize", "2");
+    addInputFile("file.css");
+    // not the same content as file.css, which would share its cached issues
+    addInputFile("file-with-rule-id-message.css", "other css content");
+    sensor.execute(context);
+
+    assertThat(context.allIssues()).hasSize(2);
+    assertThat(context.allIssues()).extracting("primaryLocation.message")
+      .containsOnly("Unexpected empty block", "some message");
+    assertThat(String.join("\n", logTester.logs(LoggerLevel.DEBUG)))
+      .matches("(?s).*Using cached issues for \\S*file\\.css.*")
+      .matches("(?s).*Analyzing \\S*file-with-rule-id-message\\.css.*");
+    assertThat(cacheDir.listFiles()).hasSize(2);
+  }
+
+  @Test
+  public void should_not_cache_failed_analysis() throws IOException {
+    File cacheDir = tmpDir.newFolder("cache");
+    context.settings().setProperty("sonar.css.analysis.cachePath", cacheDir.getAbsolutePath());
+    addInputFile("analysis-error.css");
+    sensor.execute(context);
+
+    assertThat(context.allIssues()).isEmpty();
+    assertThat(cacheDir.listFiles()).isEmpty();
+    assertThat(String.join("\n", logTester.logs(LoggerLevel.DEBUG)))
+      .matches("(?s).*Failed to analyze \\S*analysis-error\\.css.*");
+
+    logTester.clear();
+    context = SensorContextTester.create(BASE_DIR);
+    context.fileSystem().setWorkDir(tmpDir.getRoot().toPath());
+    context.settings().setProperty("sonar.css.analysis.cachePath", cacheDir.getAbsolutePath());
+    context.settings().setProperty("sonar.css.analysis.batchSize", "2");
+    addInputFile("analysis-error.css");
+    addInputFile("empty.css", "other css content");
+    sensor.execute(context);
+
+    // only the issues of empty.css are cached, the failed file is not sent again as a file missing from the batch response
+    assertThat(cacheDir.listFiles()).hasSize(1);
+    assertThat(String.join("\n", logTester.logs(LoggerLevel.DEBUG)))
+      .matches("(?s).*Analyzing \\S*analysis-error\\.css.*")
+      .matches("(?s).*Failed to analyze \\S*analysis-error\\.css.*");
+    assertThat(logTester.logs(LoggerLevel.WARN)).isEmpty();
+  }
+
+  @Test
+  public void test_incremental_execute() throws IOException {
+    File cacheDir = tmpDir.newFolder("cache");
+    context.settings().setProperty("sonar.css.analysis.incremental", "true");
+    context.settings().setProperty("sonar.css.analysis.cachePath", cacheDir.getAbsolutePath());
+    addInputFile("file.css");
+    sensor.execute(context);
+    assertThat(context.allIssues()).hasSize(1);
+
+    logTester.clear();
+    context = SensorContextTester.create(BASE_DIR);
+    context.fileSystem().setWorkDir(tmpDir.getRoot().toPath());
+    context.settings().setProperty("sonar.css.analysis.incremental", "true");
+    context.settings().setProperty("sonar.css.analysis.cachePath", cacheDir.getAbsolutePath());
+    DefaultInputFile sameFile = new TestInputFileBuilder("moduleKey", "file.css")
+      .setLanguage(CssLanguage.KEY)
+      .setCharset(StandardCharsets.UTF_8)
+      // same content as the analyzed file
+      .setContents("some css content\n on 2 lines")
+      .setStatus(InputFile.Status.SAME)
+      .build();
+    context.fileSystem().add(sameFile);
+    sensor.execute(context);
+
+    assertThat(context.allIssues()).extracting("primaryLocation.component").containsExactly(sameFile);
+    assertThat(String.join("\n", logTester.logs(LoggerLevel.DEBUG)))
+      .matches("(?s).*Using cached issues for \\S*file\\.css.*")
+      .doesNotMatch("(?s).*Analyzing \\S*file\\.css.*");
+  }
+
+  @Test
+  public void should_fail_fast_with_batches() {
+    context.settings().setProperty("sonar.internal.analysis.failFast", "true");
+    context.settings().setProperty("sonar.css.analysis.batchSize", "10");
+    addInputFile("file.css");
+    addInputFile("invalid-json-response.css");
+
+    assertThatThrownBy(() -> sensor.execute(context))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageContaining("Analysis failed");
+    assertThat(String.join("\n", logTester.logs(LoggerLevel.DEBUG)))
+      .contains("Failed to parse response");
+  }
+
+  @Test
+  public void should_fail_fast_with_concurrent_requests() {
+    context.settings().setProperty("sonar.internal.analysis.failFast", "true");
+    context.settings().setProperty("sonar.css.analysis.concurrentRequests", "2");
+    addInputFile("file.css");
+    addInputFile("invalid-json-response.css");
+
+    assertThatThrownBy(() -> sensor.execute(context))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageContaining("Analysis failed");
+    assertThat(String.join("\n", logTester.logs(LoggerLevel.ERROR)))
+      .contains("Failure during CSS analysis");
+  }
+
+  @Test
+  public void should_stop_concurrent_execution_when_sensor_context_is_cancelled() {
+    context.settings().setProperty("sonar.css.analysis.concurrentRequests", "2");
+    addInputFile("file.css");
+    context.setCancelled(true);
+    sensor.execute(context);
+    assertThat(context.allIssues()).isEmpty();
+    assertThat(logTester.logs(LoggerLevel.INFO))
+      .contains("java.util.concurrent.CancellationException: Analysis interrupted because the SensorContext is in cancelled state");
+  }
+
   @Test
   public void test_non_css_files() {
     DefaultInputFile fileCss = addInputFile("file.css");
@@ -162,7 +373,7 @@ public class CssRuleSensorTest {
   public void should_fail_fast_when_server_fail_to_start() {
     context.settings().setProperty("sonar.internal.analysis.failFast", "true");
     CssAnalyzerBridgeServer badServer = createCssAnalyzerBridgeServer("throw.js");
-    sensor = new CssRuleSensor(CHECK_FACTORY, badServer, analysisWarnings);
+    sensor = new CssRuleSensor(CHECK_FACTORY, badServer, fileContentCache, analysisWarnings);
     addInputFile("file.css");
 
     assertThatThrownBy(() -> sensor.execute(context))
@@ -175,7 +386,7 @@ public class CssRuleSensorTest {
   public void should_fail_fast_when_server_fail_to_start_no_css() {
     context.settings().setProperty("sonar.internal.analysis.failFast", "true");
     CssAnalyzerBridgeServer badServer = createCssAnalyzerBridgeServer("throw.js");
-    sensor = new CssRuleSensor(CHECK_FACTORY, badServer, analysisWarnings);
+    sensor = new CssRuleSensor(CHECK_FACTORY, badServer, fileContentCache, analysisWarnings);
     addInputFile("file.web");
 
     assertThatThrownBy(() -> sensor.execute(context))
@@ -188,7 +399,7 @@ public class CssRuleSensorTest {
   public void should_not_fail_fast_when_server_fail_to_start_without_property() {
     context.settings().setProperty("sonar.internal.analysis.failFast", "false");
     CssAnalyzerBridgeServer badServer = createCssAnalyzerBridgeServer("throw.js");
-    sensor = new CssRuleSensor(CHECK_FACTORY, badServer, analysisWarnings);
+    sensor = new CssRuleSensor(CHECK_FACTORY, badServer, fileContentCache, analysisWarnings);
     addInputFile("file.web");
 
     sensor.execute(context);
@@ -211,7 +422,7 @@ public class CssRuleSensorTest {
     InputFile httpFile = mock(InputFile.class);
     when(httpFile.filename()).thenReturn("file.css");
     when(httpFile.uri()).thenReturn(new URI("http://lost-on-earth.com/file.css"));
-    sensor.analyzeFile(context, httpFile, new File("config.json"));
+    sensor.analyzeFile(context, httpFile, new File("config.json"), AnalysisCache.disabled());
     assertThat(String.join("\n", logTester.logs(LoggerLevel.DEBUG)))
       .matches("(?s).*Skipping \\S*file.css as it has not 'file' scheme.*")
       .doesNotMatch("(?s).*\nAnalyzing \\S*file.css.*");
@@ -224,7 +435,7 @@ public class CssRuleSensorTest {
     sensor.execute(context);
     cssAnalyzerBridgeServer.setPort(43);
 
-    assertThatThrownBy(() -> sensor.analyzeFileWithContextCheck(inputFile, context, configFile))
+    assertThatThrownBy(() -> sensor.analyzeFileWithContextCheck(inputFile, context, configFile, AnalysisCache.disabled()))
       .isInstanceOf(IllegalStateException.class)
       .hasMessageContaining("css-bundle server is not answering");
   }
@@ -250,7 +461,7 @@ public class CssRuleSensorTest {
 
     assertThat(context.allIssues()).hasSize(1);
 
-    sensor = new CssRuleSensor(CHECK_FACTORY, cssAnalyzerBridgeServer, null);
+    sensor = new CssRuleSensor(CHECK_FACTORY, cssAnalyzerBridgeServer, fileContentCache, null);
     sensor.execute(context);
     verifyNoMoreInteractions(analysisWarnings);
   }
@@ -291,11 +502,31 @@ public class CssRuleSensorTest {
   }
 
   @Test
-  public void should_send_file_content_if_encoding_is_not_utf8() throws IOException {
+  public void should_send_file_encoding_if_encoding_is_not_utf8() throws IOException {
+    DefaultInputFile inputFile = new TestInputFileBuilder("moduleKey", "copy-file-content-into-issue-message.css")
+      .setLanguage(CssLanguage.KEY)
+      .setCharset(StandardCharsets.ISO_8859_1)
+      .setContents("css content")
+      .build();
+    context.fileSystem().add(inputFile);
+    DefaultInputFile utf16File = new TestInputFileBuilder("moduleKey", "copy-file-encoding-into-issue-message.css")
+      .setLanguage(CssLanguage.KEY)
+      .setCharset(StandardCharsets.UTF_16LE)
+      .setContents("css content")
+      .build();
+    context.fileSystem().add(utf16File);
+    sensor.execute(context);
+
+    assertThat(context.allIssues()).extracting("primaryLocation.message")
+      .containsExactlyInAnyOrder("undefined", "utf16le");
+  }
+
+  @Test
+  public void should_send_file_content_if_encoding_is_not_supported_by_server() throws IOException {
     String filePath = "copy-file-content-into-issue-message.css";
     DefaultInputFile inputFile = new TestInputFileBuilder("moduleKey", filePath)
       .setLanguage(CssLanguage.KEY)
-      .setCharset(StandardCharsets.ISO_8859_1)
+      .setCharset(StandardCharsets.UTF_16BE)
       .setContents("css content")
       .build();
     context.fileSystem().add(inputFile);
@@ -306,6 +537,40 @@ public class CssRuleSensorTest {
       .containsOnly("css content");
   }
 
+  @Test
+  public void should_send_file_content_if_encoding_is_us_ascii() throws IOException {
+    DefaultInputFile inputFile = new TestInputFileBuilder("moduleKey", "copy-file-content-into-issue-message.css")
+      .setLanguage(CssLanguage.KEY)
+      .setCharset(StandardCharsets.US_ASCII)
+      .setContents("css content")
+      .build();
+    context.fileSystem().add(inputFile);
+    sensor.execute(context);
+
+    assertThat(context.allIssues()).extracting("primaryLocation.message").containsOnly("css content");
+  }
+
+  @Test
+  public void should_not_send_file_encoding_if_encoding_is_utf8() throws IOException {
+    DefaultInputFile inputFile = new TestInputFileBuilder("moduleKey", "copy-file-encoding-into-issue-message.css")
+      .setLanguage(CssLanguage.KEY)
+      .setCharset(StandardCharsets.UTF_8)
+      .setContents("css content")
+      .build();
+    context.fileSystem().add(inputFile);
+    sensor.execute(context);
+
+    assertThat(context.allIssues()).extracting("primaryLocation.message").containsOnly("undefined");
+  }
+
+  @Test
+  public void should_reference_registered_config() {
+    addInputFile("copy-config-handle-into-issue-message.css");
+    sensor.execute(context);
+
+    assertThat(context.allIssues()).extracting("primaryLocation.message").containsOnly("mock-config-handle");
+  }
+
   @Test
   public void should_send_file_content_if_context_is_sonarlint() throws IOException {
     String filePath = "copy-file-content-into-issue-message.css";
@@ -323,12 +588,16 @@ public class CssRuleSensorTest {
   }
 
   private DefaultInputFile addInputFile(String relativePath) {
+    return addInputFile(relativePath, "some css content\n on 2 lines");
+  }
+
+  private DefaultInputFile addInputFile(String relativePath, String contents) {
     String extension = relativePath.split("\\.")[1];
     String language = extension.equals("vue") ? "js" : extension;
     DefaultInputFile inputFile = new TestInputFileBuilder("moduleKey", relativePath)
       .setLanguage(language)
       .setCharset(StandardCharsets.UTF_8)
-      .setContents("some css content\n on 2 lines")
+      .setContents(contents)
       .build();
 
     context.fileSystem().add(inputFile);
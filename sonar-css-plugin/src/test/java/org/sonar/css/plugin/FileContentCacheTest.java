@@ -0,0 +1,98 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin;
+
+import java.io.IOException;
+import java.net.URI;
+import org.junit.Test;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.internal.MapSettings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FileContentCacheTest {
+
+  @Test
+  public void should_read_file_once() throws IOException {
+    FileContentCache cache = new FileContentCache(new MapSettings().asConfig());
+    InputFile file = inputFile("file.css", "a {}");
+
+    assertThat(cache.contents(file)).isEqualTo("a {}");
+    assertThat(cache.contents(file)).isEqualTo("a {}");
+    verify(file, times(1)).contents();
+  }
+
+  @Test
+  public void should_evict_least_recently_used_contents() throws IOException {
+    FileContentCache cache = new FileContentCache(new MapSettings().setProperty("sonar.css.contentCache.maxSize", 10).asConfig());
+    InputFile file1 = inputFile("file1.css", "a {}");
+    InputFile file2 = inputFile("file2.css", "b {}");
+    InputFile file3 = inputFile("file3.css", "c {}");
+
+    cache.contents(file1);
+    cache.contents(file2);
+    // file1 becomes the most recently used
+    cache.contents(file1);
+    cache.contents(file3);
+    assertThat(cache.size()).isEqualTo(2);
+
+    cache.contents(file1);
+    cache.contents(file2);
+    verify(file1, times(1)).contents();
+    verify(file2, times(2)).contents();
+  }
+
+  @Test
+  public void should_not_keep_contents_larger_than_maximum() throws IOException {
+    FileContentCache cache = new FileContentCache(new MapSettings().setProperty("sonar.css.contentCache.maxSize", 3).asConfig());
+    InputFile file = inputFile("file.css", "a {}");
+
+    assertThat(cache.contents(file)).isEqualTo("a {}");
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  public void should_release_contents_when_all_readers_are_done() throws IOException {
+    FileContentCache cache = new FileContentCache(new MapSettings().asConfig());
+    cache.addReader();
+    cache.addReader();
+    InputFile file = inputFile("file.css", "a {}");
+
+    cache.contents(file);
+    cache.readerFinished();
+    assertThat(cache.size()).isEqualTo(1);
+    cache.readerFinished();
+    assertThat(cache.size()).isZero();
+
+    assertThat(cache.contents(file)).isEqualTo("a {}");
+    assertThat(cache.size()).isZero();
+  }
+
+  private static InputFile inputFile(String fileName, String contents) throws IOException {
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.uri()).thenReturn(URI.create("file:///project/" + fileName));
+    when(inputFile.contents()).thenReturn(contents);
+    return inputFile;
+  }
+}
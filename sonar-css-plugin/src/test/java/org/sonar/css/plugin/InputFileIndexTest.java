@@ -0,0 +1,119 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InputFileIndexTest {
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  private Path baseDir;
+  private DefaultFileSystem fileSystem;
+  private DefaultInputFile inputFile;
+
+  @Before
+  public void setUp() {
+    baseDir = tmpDir.getRoot().toPath();
+    fileSystem = new DefaultFileSystem(baseDir);
+    inputFile = addInputFile("dir/file.css");
+  }
+
+  @Test
+  public void should_find_file_by_relative_path() {
+    InputFileIndex index = InputFileIndex.create(fileSystem);
+    assertThat(index.inputFile("dir/file.css")).isSameAs(inputFile);
+    assertThat(index.inputFile("dir\\file.css")).isSameAs(inputFile);
+    assertThat(index.inputFile("./dir/other/../file.css")).isSameAs(inputFile);
+  }
+
+  @Test
+  public void should_find_file_by_absolute_path() {
+    InputFileIndex index = InputFileIndex.create(fileSystem);
+    String absolutePath = baseDir.resolve("dir/file.css").toString();
+    assertThat(index.inputFile(absolutePath)).isSameAs(inputFile);
+    assertThat(index.inputFile(baseDir.resolve("dir/../dir/file.css").toString())).isSameAs(inputFile);
+  }
+
+  @Test
+  public void should_find_file_ignoring_case() {
+    InputFileIndex index = InputFileIndex.create(fileSystem);
+    assertThat(index.inputFile("DIR/File.CSS")).isSameAs(inputFile);
+  }
+
+  @Test
+  public void should_not_guess_when_case_is_ambiguous() {
+    DefaultInputFile upperCaseFile = addInputFile("dir/FILE.css");
+    InputFileIndex index = InputFileIndex.create(fileSystem);
+    assertThat(index.inputFile("dir/FILE.css")).isSameAs(upperCaseFile);
+    assertThat(index.inputFile("dir/file.css")).isSameAs(inputFile);
+    assertThat(index.inputFile("dir/File.css")).isNull();
+  }
+
+  @Test
+  public void should_not_find_unknown_file() {
+    InputFileIndex index = InputFileIndex.create(fileSystem);
+    assertThat(index.inputFile("file.css")).isNull();
+    assertThat(index.inputFile(baseDir.resolve("dir/file.cssx").toString())).isNull();
+    assertThat(index.inputFile(null)).isNull();
+  }
+
+  @Test
+  public void should_skip_files_without_file_scheme() throws URISyntaxException {
+    InputFile httpFile = mock(InputFile.class);
+    when(httpFile.uri()).thenReturn(new URI("http://lost-on-earth.com/file.css"));
+    FileSystem mixedFileSystem = mock(FileSystem.class);
+    when(mixedFileSystem.baseDir()).thenReturn(baseDir.toFile());
+    when(mixedFileSystem.predicates()).thenReturn(fileSystem.predicates());
+    when(mixedFileSystem.inputFiles(any())).thenReturn(Arrays.asList(httpFile, inputFile));
+
+    InputFileIndex index = InputFileIndex.create(mixedFileSystem);
+    assertThat(index.inputFile("dir/file.css")).isSameAs(inputFile);
+    assertThat(index.inputFile("http://lost-on-earth.com/file.css")).isNull();
+  }
+
+  private DefaultInputFile addInputFile(String relativePath) {
+    DefaultInputFile file = new TestInputFileBuilder("moduleKey", relativePath)
+      .setModuleBaseDir(baseDir)
+      .setLanguage(CssLanguage.KEY)
+      .setContents("a {}")
+      .build();
+    fileSystem.add(file);
+    return file;
+  }
+}
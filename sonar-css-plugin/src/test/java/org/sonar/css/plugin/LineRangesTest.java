@@ -0,0 +1,56 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin;
+
+import org.junit.Test;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class LineRangesTest {
+
+  private final InputFile inputFile = spy(new TestInputFileBuilder("moduleKey", "file.css")
+    .setContents("a {\n  color: red;\n}\n")
+    .build());
+
+  @Test
+  public void should_select_each_line_once() {
+    LineRanges lineRanges = new LineRanges(inputFile);
+
+    assertThat(lineRanges.selectLine(2)).isEqualTo(inputFile.selectLine(2));
+    assertThat(lineRanges.selectLine(2)).isSameAs(lineRanges.selectLine(2));
+    assertThat(lineRanges.selectLine(1).start().line()).isEqualTo(1);
+
+    verify(inputFile, times(2)).selectLine(2);
+    verify(inputFile, times(1)).selectLine(1);
+  }
+
+  @Test
+  public void should_fail_on_invalid_line() {
+    LineRanges lineRanges = new LineRanges(inputFile);
+
+    assertThatThrownBy(() -> lineRanges.selectLine(10)).isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -19,14 +19,25 @@
  */
 package org.sonar.css.plugin;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.sonar.api.batch.fs.internal.DefaultInputFile;
 import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 
 public class MinifiedFilesFilterTest {
 
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
   private static final MinifiedFilesFilter MINIFIED_FILES_FILTER = new MinifiedFilesFilter();
 
   @Test
@@ -54,4 +65,43 @@ public class MinifiedFilesFilterTest {
       .build();
     assertThat(MINIFIED_FILES_FILTER.accept(jsFile)).isFalse();
   }
+
+  @Test
+  public void should_exclude_by_content_at_threshold() throws Exception {
+    // 201 characters per line on average
+    String minifiedContent = repeat('a', 300) + "\n" + repeat('a', 101);
+    DefaultInputFile minifiedFile = TestInputFileBuilder.create("", "foo.css")
+      .setLanguage("css")
+      .setCharset(StandardCharsets.UTF_8)
+      .setContents(minifiedContent)
+      .build();
+    assertThat(MINIFIED_FILES_FILTER.accept(minifiedFile)).isFalse();
+
+    // 200.5 characters per line on average
+    String notMinifiedContent = repeat('a', 300) + "\n" + repeat('a', 100);
+    DefaultInputFile notMinifiedFile = TestInputFileBuilder.create("", "foo.css")
+      .setLanguage("css")
+      .setCharset(StandardCharsets.UTF_8)
+      .setContents(notMinifiedContent)
+      .build();
+    assertThat(MINIFIED_FILES_FILTER.accept(notMinifiedFile)).isTrue();
+  }
+
+  @Test
+  public void should_keep_small_file_without_reading_it() throws Exception {
+    File file = tmpDir.newFile("foo.css");
+    Files.write(file.toPath(), "a {}\n".getBytes(StandardCharsets.UTF_8));
+    DefaultInputFile inputFile = spy(new TestInputFileBuilder("", tmpDir.getRoot(), file)
+      .setLanguage("css")
+      .setCharset(StandardCharsets.UTF_8)
+      .setContents("a {}\n")
+      .build());
+    assertThat(MINIFIED_FILES_FILTER.accept(inputFile)).isTrue();
+    verify(inputFile, never()).inputStream();
+    verify(inputFile, never()).contents();
+  }
+
+  private static String repeat(char c, int count) {
+    return new String(new char[count]).replace('\0', c);
+  }
 }
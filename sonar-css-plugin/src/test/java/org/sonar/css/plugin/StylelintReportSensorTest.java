@@ -22,8 +22,11 @@ package org.sonar.css.plugin;
 import java.io.File;
 import java.io.FileWriter;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -135,6 +138,39 @@ public class StylelintReportSensorTest {
     assertThat(context.allExternalIssues()).hasSize(1);
   }
 
+  @Test
+  public void should_save_issues_read_before_invalid_json() throws Exception {
+    String report = "[\n" +
+      "  {\n" +
+      "    \"source\": \"file.css\",\n" +
+      "    \"warnings\": [{\"line\": 1, \"rule\": \"color-no-invalid-hex\", \"text\": \"external issue message\"}]\n" +
+      "  },\n" +
+      "  {\n" +
+      "    \"source\": \"file.css\",\n" +
+      "    \"warnings\": [{\"line\": 1, \"rule\": \"comment-no-empty\",";
+
+    File reportFile = tmpDir.newFile();
+    Files.write(reportFile.toPath(), report.getBytes(StandardCharsets.UTF_8));
+
+    setReport(reportFile.getAbsolutePath());
+    stylelintReportSensor.execute(context);
+
+    assertThat(context.allExternalIssues()).hasSize(1);
+    assertThat(logTester.logs(LoggerLevel.ERROR)).contains("Failed to parse json stylelint report");
+  }
+
+  @Test
+  public void should_log_when_report_is_not_an_array() throws Exception {
+    File reportFile = tmpDir.newFile();
+    Files.write(reportFile.toPath(), "{\"source\": \"file.css\"}".getBytes(StandardCharsets.UTF_8));
+
+    setReport(reportFile.getAbsolutePath());
+    stylelintReportSensor.execute(context);
+
+    assertThat(context.allExternalIssues()).isEmpty();
+    assertThat(logTester.logs(LoggerLevel.ERROR)).contains("Failed to parse json stylelint report");
+  }
+
   @Test
   public void should_skip_duplicates() throws Exception {
     // when in SQ CSS profile there is an activated rule matching to an external issue,
@@ -200,6 +236,73 @@ public class StylelintReportSensorTest {
     assertThat(context.allExternalIssues()).hasSize(3);
   }
 
+  @Test
+  public void should_keep_duplicated_warnings_of_single_report() throws Exception {
+    File reportFile = tmpDir.newFile();
+    String warning = "{\"line\": 1, \"column\": 1, \"rule\": \"comment-no-empty\", \"text\": \"message\"}";
+    String otherWarning = "{\"line\": 2, \"column\": 1, \"rule\": \"comment-no-empty\", \"text\": \"message\"}";
+    String report = "[{\"source\": \"file.css\", \"warnings\": [" + warning + "," + otherWarning + "]},"
+      + "{\"source\": \"file.css\", \"warnings\": [" + warning + "]}]";
+    Files.write(reportFile.toPath(), report.getBytes(StandardCharsets.UTF_8));
+
+    setReport(reportFile.getAbsolutePath());
+    stylelintReportSensor.execute(context);
+
+    assertThat(context.allExternalIssues()).hasSize(3);
+  }
+
+  @Test
+  public void should_skip_warnings_duplicated_in_other_report() throws Exception {
+    File reportFile = tmpDir.newFile();
+    File otherReportFile = tmpDir.newFile();
+    String warning = "{\"line\": 1, \"column\": 1, \"rule\": \"comment-no-empty\", \"text\": \"message\"}";
+    String otherColumnWarning = "{\"line\": 1, \"column\": 5, \"rule\": \"comment-no-empty\", \"text\": \"message\"}";
+    String noColumnWarning = "{\"line\": 2, \"rule\": \"comment-no-empty\", \"text\": \"message\"}";
+    Files.write(reportFile.toPath(), ("[{\"source\": \"file.css\", \"warnings\": [" + warning + "," + noColumnWarning + "]}]")
+      .getBytes(StandardCharsets.UTF_8));
+    Files.write(otherReportFile.toPath(), ("[{\"source\": \"file.css\", \"warnings\": [" + warning + "," + otherColumnWarning + "," + noColumnWarning + "]}]")
+      .getBytes(StandardCharsets.UTF_8));
+
+    setReport(reportFile.getAbsolutePath() + "," + otherReportFile.getAbsolutePath());
+    stylelintReportSensor.execute(context);
+
+    // warning is saved once, warnings without column can't be compared
+    assertThat(context.allExternalIssues()).hasSize(4);
+  }
+
+  @Test
+  public void should_import_several_reports_in_parallel() throws Exception {
+    context.settings().setProperty("sonar.css.stylelint.threads", "3");
+    List<String> reportPaths = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      StringBuilder report = new StringBuilder("[");
+      for (int j = 0; j < 500; j++) {
+        report.append(j == 0 ? "" : ",")
+          .append("{\"source\": \"file.css\", \"warnings\": [")
+          // shards overlap on the first warning, the second one is specific to each shard
+          .append("{\"line\": 1, \"column\": 1, \"rule\": \"comment-no-empty\", \"text\": \"message " + j + "\"},")
+          .append("{\"line\": 2, \"column\": 1, \"rule\": \"comment-no-empty\", \"text\": \"message " + i + "-" + j + "\"}")
+          .append("]}");
+      }
+      File reportFile = tmpDir.newFile();
+      Files.write(reportFile.toPath(), report.append("]").toString().getBytes(StandardCharsets.UTF_8));
+      reportPaths.add(reportFile.getAbsolutePath());
+    }
+    reportPaths.add(new File(BASE_DIR, "invalid-file.json").getAbsolutePath());
+
+    setReport(String.join(",", reportPaths));
+    stylelintReportSensor.execute(context);
+
+    assertThat(context.allExternalIssues()).hasSize(500 + 5 * 500 + 1);
+    assertThat(logTester.logs(LoggerLevel.INFO).stream().filter(log -> log.startsWith("Importing"))).hasSize(6);
+  }
+
+  @Test
+  public void should_share_rule_metadata() {
+    assertThat(StylelintReportSensor.getStylelintRuleLoader()).isSameAs(StylelintReportSensor.getStylelintRuleLoader());
+    assertThat(StylelintReportSensor.getStylelintRuleLoader().ruleType("color-no-invalid-hex")).isEqualTo(RuleType.BUG);
+  }
+
   @Test
   public void test_descriptor() throws Exception {
     DefaultSensorDescriptor sensorDescriptor = new DefaultSensorDescriptor();
@@ -23,6 +23,8 @@ import com.sonar.sslr.impl.Lexer;
 
 import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.regexp;
 
+// Former regexp based lexer, replaced by CssScanner and kept as reference to check that both produce the same tokens.
+
 // This is a at-best lexer.
 // It is far from being entirely matching the standard definition of css/less/scss tokens nor
 // following the theory of what a lexer responsibilities are but as we are only building line metrics and highlighting
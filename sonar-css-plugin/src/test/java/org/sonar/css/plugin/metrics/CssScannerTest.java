@@ -0,0 +1,125 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.metrics;
+
+import com.sonar.sslr.api.GenericTokenType;
+import com.sonar.sslr.api.Token;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+import org.sonarsource.analyzer.commons.TokenLocation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CssScannerTest {
+
+  private static final Path ITS_SOURCES = Paths.get("../its/sources");
+
+  @Test
+  public void should_produce_same_tokens_as_regexp_lexer_on_its_sources() throws IOException {
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(ITS_SOURCES)) {
+      files = paths
+        .filter(path -> path.getFileName().toString().matches(".*\\.(css|less|scss)"))
+        .collect(Collectors.toList());
+    }
+    assertThat(files).isNotEmpty();
+    for (Path file : files) {
+      assertSameTokens(file.toString(), new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void should_produce_same_tokens_as_regexp_lexer_on_edge_cases() {
+    assertSameTokens("unclosed comment", "a /* b { c: d; }");
+    assertSameTokens("empty comment", "/**/a/*/b*/");
+    assertSameTokens("inline comments", "// a\r\nb // c\fd");
+    assertSameTokens("escapes in strings", "\"a\\41 b\" \"a\\\"b\" 'c\\\r\nd' 'e\\\rf' ~'g\\\fh' ~x");
+    assertSameTokens("unclosed strings", "\"a\nb\" 'c");
+    assertSameTokens("escapes in identifiers", "\\41 bc \\1234567 -\\61 \\g #\\31 $\\32\t");
+    assertSameTokens("dashes", "--a -b -1 - -.5 a--b");
+    assertSameTokens("numbers", "+1 |2 -3.5em .5% 1.px 1e3 +a 1PX");
+    assertSameTokens("at identifiers", "@ @@a @-b @1 @--c");
+    assertSameTokens("hash and dollar", "# #a-1 $ $$b #{$c}");
+    assertSameTokens("unknown characters", "a < b ~ c ^ d ? e ` f \\");
+    assertSameTokens("non ascii", "\u00e9t\u00e9 \ud83d\ude00a \ud83d b c");
+    assertSameTokens("line breaks", "a\rb\r\nc\nd\fe\r\r\n");
+  }
+
+  @Test
+  public void should_scan_unclosed_comments() {
+    String input = StringUtils.repeat("/*", 100_000);
+    List<CssToken> tokens = new Tokenizer().tokenize(input);
+    assertThat(tokens).hasSize(200_000);
+    assertThat(tokens.get(199_999).type).isEqualTo(CssTokenType.PUNCTUATOR);
+    assertThat(tokens.get(199_999).endColumn).isEqualTo(200_000);
+  }
+
+  @Test
+  public void should_reset_state_between_inputs() {
+    Tokenizer tokenizer = new Tokenizer();
+    assertThat(tokenizer.tokenize("/* a */")).hasSize(1);
+
+    List<CssToken> tokens = tokenizer.tokenize("/* b");
+    assertThat(tokens).extracting(token -> token.text).containsExactly("/", "*", "b");
+    assertThat(tokens.get(0).startLine).isEqualTo(1);
+    assertThat(tokens.get(0).startColumn).isZero();
+  }
+
+  @Test
+  public void should_flag_hex_colors() {
+    TokenBuffer tokens = new Tokenizer().scan("#fff #12AB34 #12g #a-1 #\\31 {} $abc");
+    List<Boolean> hexColors = new ArrayList<>();
+    for (int i = 0; i < tokens.size(); i++) {
+      hexColors.add(tokens.isHexColor(i));
+    }
+    assertThat(hexColors).containsExactly(true, true, false, false, false, false, false, false);
+  }
+
+  private static void assertSameTokens(String description, String input) {
+    List<String> expected = CssLexer.create().lex(input).stream()
+      .filter(token -> token.getType() != GenericTokenType.EOF)
+      .map(CssScannerTest::toString)
+      .collect(Collectors.toList());
+    List<String> actual = new Tokenizer().tokenize(input).stream()
+      .map(CssScannerTest::toString)
+      .collect(Collectors.toList());
+    assertThat(actual).as(description).isEqualTo(expected);
+  }
+
+  private static String toString(Token token) {
+    TokenLocation location = new TokenLocation(token.getLine(), token.getColumn(), token.getValue());
+    return token.getType() + " " + location.startLine() + ":" + location.startLineOffset()
+      + "-" + location.endLine() + ":" + location.endLineOffset() + " " + token.getValue();
+  }
+
+  private static String toString(CssToken token) {
+    return token.type + " " + token.startLine + ":" + token.startColumn
+      + "-" + token.endLine + ":" + token.endColumn + " " + token.text;
+  }
+}
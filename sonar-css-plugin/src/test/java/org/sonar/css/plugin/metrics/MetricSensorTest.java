@@ -21,7 +21,9 @@ package org.sonar.css.plugin.metrics;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -33,16 +35,22 @@ import org.sonar.api.batch.sensor.internal.SensorContextTester;
 import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.measures.FileLinesContext;
 import org.sonar.api.measures.FileLinesContextFactory;
+import org.sonar.css.plugin.FileContentCache;
 import org.sonar.css.plugin.metrics.MetricSensor;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class MetricSensorTest {
 
   private DefaultInputFile inputFile;
   private SensorContextTester sensorContext;
+  private FileLinesContext linesContext;
 
   @Rule
   public TemporaryFolder tempFolder = new TemporaryFolder();
@@ -50,7 +58,7 @@ public class MetricSensorTest {
   @Test
   public void should_describe() {
     DefaultSensorDescriptor desc = new DefaultSensorDescriptor();
-    new MetricSensor(null).describe(desc);
+    new MetricSensor(null, null).describe(desc);
 
     assertThat(desc.languages()).containsOnly("css");
   }
@@ -122,6 +130,9 @@ public class MetricSensorTest {
 
     executeSensor("#header { .border-radius(4px); }");
     assertHighlighting(1, 0, 7, TypeOfText.KEYWORD);
+
+    executeSensor("a { color: #12g; }");
+    assertHighlighting(1, 11, 4, TypeOfText.KEYWORD);
   }
 
   @Test
@@ -185,6 +196,46 @@ public class MetricSensorTest {
     assertLinesOfComment(1);
   }
 
+  @Test
+  public void lines_of_multiline_tokens() throws IOException {
+    executeSensor("a {\n  content: \"foo\\\nbar\";\n}\n\n/* some\n\ncomment */ b {}\n/* other */");
+    assertLinesOfCode(5);
+    assertLinesOfComment(4);
+    for (int line : new int[] {1, 2, 3, 4, 8}) {
+      verify(linesContext).setIntValue(CoreMetrics.NCLOC_DATA_KEY, line, 1);
+    }
+    verify(linesContext, times(5)).setIntValue(eq(CoreMetrics.NCLOC_DATA_KEY), anyInt(), anyInt());
+    verify(linesContext).save();
+  }
+
+  @Test
+  public void should_compute_metrics_in_parallel() throws IOException {
+    sensorContext = SensorContextTester.create(tempFolder.getRoot());
+    sensorContext.settings().setProperty("sonar.css.metrics.threads", 3);
+    FileLinesContextFactory linesContextFactory = mock(FileLinesContextFactory.class);
+    List<DefaultInputFile> files = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      DefaultInputFile file = new TestInputFileBuilder("moduleKey", "file" + i + ".css")
+        .setLanguage("css")
+        .setContents(StringUtils.repeat("/* comment */\n", i) + "a { color: #fff; }\n@b: 1px;")
+        .build();
+      sensorContext.fileSystem().add(file);
+      when(linesContextFactory.createFor(file)).thenReturn(mock(FileLinesContext.class));
+      files.add(file);
+    }
+
+    new MetricSensor(linesContextFactory, new FileContentCache(sensorContext.config())).execute(sensorContext);
+
+    for (int i = 0; i < files.size(); i++) {
+      inputFile = files.get(i);
+      assertLinesOfCode(2);
+      assertLinesOfComment(i);
+      assertHighlighting(i + 1, 4, 5, TypeOfText.KEYWORD_LIGHT);
+      assertHighlighting(i + 1, 11, 4, TypeOfText.CONSTANT);
+      assertHighlighting(i + 2, 0, 2, TypeOfText.ANNOTATION);
+    }
+  }
+
   private void executeSensor(String content) throws IOException {
     File file = tempFolder.newFile();
     inputFile = new TestInputFileBuilder("moduleKey", file.getName())
@@ -195,10 +246,10 @@ public class MetricSensorTest {
     sensorContext = SensorContextTester.create(tempFolder.getRoot());
     sensorContext.fileSystem().add(inputFile);
 
-    FileLinesContext linesContext = mock(FileLinesContext.class);
+    linesContext = mock(FileLinesContext.class);
     FileLinesContextFactory linesContextFactory = mock(FileLinesContextFactory.class);
     when(linesContextFactory.createFor(inputFile)).thenReturn(linesContext);
-    new MetricSensor(linesContextFactory).execute(sensorContext);
+    new MetricSensor(linesContextFactory, new FileContentCache(sensorContext.config())).execute(sensorContext);
   }
 
   private void assertHighlighting(int line, int column, int length, TypeOfText type) {
@@ -0,0 +1,137 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.sonar.css.plugin.server.CssAnalyzerBridgeServer.Issue;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class CompactIssueReaderTest {
+
+  private final List<String> strings = new ArrayList<>();
+
+  @Test
+  public void should_read_issues_and_fill_string_table() throws IOException {
+    Issue[] issues = reader(new Bytes().varint(4)
+      .varint(300).newEntry("block-no-empty").newEntry("Unexpected empty block")
+      .varint(1).reference(0).literal("Unexpected unknown at-rule \"@\u00e9\"")
+      .varint(0).reference(0).reference(1))
+      .readIssues();
+
+    assertThat(issues).extracting(issue -> issue.line, issue -> issue.rule, issue -> issue.text).containsExactly(
+      tuple(300, "block-no-empty", "Unexpected empty block"),
+      tuple(1, "block-no-empty", "Unexpected unknown at-rule \"@\u00e9\""),
+      tuple(0, "block-no-empty", "Unexpected empty block"));
+    assertThat(strings).containsExactly("block-no-empty", "Unexpected empty block");
+
+    // the string table is kept for the next responses of the connection
+    Issue[] nextIssues = reader(new Bytes().varint(2).varint(2).reference(1).reference(0)).readIssues();
+    assertThat(nextIssues).extracting(issue -> issue.rule, issue -> issue.text)
+      .containsExactly(tuple("Unexpected empty block", "block-no-empty"));
+  }
+
+  @Test
+  public void should_read_issues_of_each_file() throws IOException {
+    Map<String, Issue[]> issuesPerFile = new LinkedHashMap<>();
+    reader(new Bytes()
+      .literal("/path/a.css").varint(2).varint(2).newEntry("rule").newEntry("message")
+      .literal("/path/b.css").varint(1)
+      .literal("/path/failed.css").varint(0)
+      .literal("/path/c.css").varint(2).varint(3).reference(0).reference(1))
+      .readFileIssues(issuesPerFile::put);
+
+    assertThat(issuesPerFile).containsOnlyKeys("/path/a.css", "/path/b.css", "/path/failed.css", "/path/c.css");
+    assertThat(issuesPerFile.get("/path/b.css")).isEmpty();
+    assertThat(issuesPerFile.get("/path/failed.css")).isNull();
+    assertThat(issuesPerFile.get("/path/c.css")).extracting(issue -> issue.line, issue -> issue.rule)
+      .containsExactly(tuple(3, "rule"));
+    assertThat(strings).containsExactly("rule", "message");
+  }
+
+  @Test
+  public void should_read_failed_analysis() throws IOException {
+    assertThat(reader(new Bytes().varint(0)).readIssues()).isNull();
+    assertThat(reader(new Bytes().varint(1)).readIssues()).isEmpty();
+  }
+
+  @Test
+  public void should_fail_on_invalid_content() {
+    assertThatThrownBy(() -> reader(new Bytes().varint(2).varint(2).reference(0)).readIssues())
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Failed to parse response after 0 file(s): unknown string #0");
+    assertThatThrownBy(() -> reader(new Bytes().varint(3).varint(2).literal("rule").literal("message")).readIssues())
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Failed to parse response after 0 file(s): unexpected end of response");
+    assertThatThrownBy(() -> reader(new Bytes().varint(1).varint(0)).readIssues())
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Failed to parse response: unexpected content after issues");
+    assertThatThrownBy(() -> reader(new Bytes().literal("/path/a.css").varint(1).literal("/path/b.css").varint(2).varint(1).varint(0xFFFFFFFFL)).readFileIssues((path, issues) -> { }))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Failed to parse response after 1 file(s): varint too large");
+  }
+
+  private CompactIssueReader reader(Bytes bytes) {
+    return new CompactIssueReader(strings, new ByteArrayInputStream(bytes.output.toByteArray()));
+  }
+
+  private static class Bytes {
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    Bytes varint(long value) {
+      long remaining = value;
+      while (remaining > 0x7F) {
+        output.write((int) (remaining & 0x7F) | 0x80);
+        remaining >>>= 7;
+      }
+      output.write((int) remaining);
+      return this;
+    }
+
+    Bytes literal(String value) {
+      return varint(0).utf8(value);
+    }
+
+    Bytes newEntry(String value) {
+      return varint(1).utf8(value);
+    }
+
+    Bytes reference(int index) {
+      return varint(index + 2L);
+    }
+
+    private Bytes utf8(String value) {
+      byte[] bytes = value.getBytes(UTF_8);
+      varint(bytes.length);
+      output.write(bytes, 0, bytes.length);
+      return this;
+    }
+  }
+}
@@ -20,7 +20,13 @@
 package org.sonar.css.plugin.server;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import org.awaitility.Awaitility;
 import org.junit.After;
@@ -49,6 +55,7 @@ import org.sonarsource.nodejs.NodeCommandException;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.awaitility.Awaitility.await;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.sonar.api.utils.log.LoggerLevel.DEBUG;
@@ -160,6 +167,222 @@ public class CssAnalyzerBridgeServerTest {
     request = new Request("/absolute/path/empty.css", null, CONFIG_FILE);
     issues = cssAnalyzerBridgeServer.analyze(request);
     assertThat(issues).isEmpty();
+
+    request = new Request("/absolute/path/analysis-error.css", null, CONFIG_FILE);
+    assertThat(cssAnalyzerBridgeServer.analyze(request)).isNull();
+  }
+
+  @Test
+  public void should_get_batch_answer_from_server() throws Exception {
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    cssAnalyzerBridgeServer.startServerLazily(context);
+
+    Map<String, Issue[]> issues = cssAnalyzerBridgeServer.analyzeBatch(Arrays.asList(
+      new Request("/absolute/path/file.css", null, CONFIG_FILE),
+      new Request("/absolute/path/empty.css", null, CONFIG_FILE),
+      new Request("/absolute/path/analysis-error.css", null, CONFIG_FILE)));
+    assertThat(issues).containsOnlyKeys("/absolute/path/file.css", "/absolute/path/empty.css", "/absolute/path/analysis-error.css");
+    assertThat(issues.get("/absolute/path/file.css")).extracting(issue -> issue.rule).containsExactly("block-no-empty");
+    assertThat(issues.get("/absolute/path/empty.css")).isEmpty();
+    assertThat(issues.get("/absolute/path/analysis-error.css")).isNull();
+
+    List<Request> invalidRequests = Arrays.asList(
+      new Request("/absolute/path/file.css", null, CONFIG_FILE),
+      new Request("/absolute/path/invalid-json-response.css", null, CONFIG_FILE));
+    assertThatThrownBy(() -> cssAnalyzerBridgeServer.analyzeBatch(invalidRequests)).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void should_stream_batch_answer_from_server() throws Exception {
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    cssAnalyzerBridgeServer.startServerLazily(context);
+
+    List<String> receivedFiles = new ArrayList<>();
+    List<Request> requests = Arrays.asList(
+      new Request("/absolute/path/file.css", null, CONFIG_FILE),
+      new Request("/absolute/path/invalid-json-response.css", null, CONFIG_FILE));
+    assertThatThrownBy(() -> cssAnalyzerBridgeServer.analyzeBatch(requests, (filePath, issues) -> receivedFiles.add(filePath)))
+      .isInstanceOf(IllegalStateException.class);
+    assertThat(receivedFiles).containsExactly("/absolute/path/file.css");
+    assertThat(logTester.logs(DEBUG)).contains("Failed to parse response after 1 file(s)");
+  }
+
+  @Test
+  public void should_get_answer_from_framed_server() throws Exception {
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    context.setSettings(new MapSettings().setProperty("sonar.css.node.transport", "framed"));
+    cssAnalyzerBridgeServer.startServerLazily(context);
+    assertThat(cssAnalyzerBridgeServer.getCommandInfo()).contains(START_SERVER_SCRIPT, "framed");
+
+    for (int i = 0; i < 3; i++) {
+      Issue[] issues = cssAnalyzerBridgeServer.analyze(new Request("/absolute/path/file.css", null, CONFIG_FILE));
+      assertThat(issues).extracting(issue -> issue.text).containsExactly("Unexpected empty block");
+    }
+
+    Map<String, Issue[]> issues = cssAnalyzerBridgeServer.analyzeBatch(Arrays.asList(
+      new Request("/absolute/path/file.css", null, CONFIG_FILE),
+      new Request("/absolute/path/copy-file-content-into-issue-message.css", "a { }", CONFIG_FILE),
+      new Request("/absolute/path/empty.css", null, CONFIG_FILE)));
+    assertThat(issues).containsOnlyKeys("/absolute/path/file.css", "/absolute/path/copy-file-content-into-issue-message.css", "/absolute/path/empty.css");
+    assertThat(issues.get("/absolute/path/copy-file-content-into-issue-message.css")).extracting(issue -> issue.text).containsExactly("a { }");
+    assertThat(issues.get("/absolute/path/empty.css")).isEmpty();
+    assertThat(cssAnalyzerBridgeServer.analyze(new Request("/absolute/path/analysis-error.css", null, CONFIG_FILE))).isNull();
+
+    cssAnalyzerBridgeServer.stop();
+    assertThat(cssAnalyzerBridgeServer.isAlive()).isFalse();
+  }
+
+  @Test
+  public void should_restart_dead_framed_process() throws Exception {
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    context.setSettings(new MapSettings().setProperty("sonar.css.node.transport", "framed"));
+    cssAnalyzerBridgeServer.startServerLazily(context);
+    ServerProcess process = cssAnalyzerBridgeServer.processes().get(0);
+    int formerPort = process.port;
+
+    // mock server dies on "close" request
+    cssAnalyzerBridgeServer.callClose(process);
+    await().atMost(5, TimeUnit.SECONDS).until(() -> !cssAnalyzerBridgeServer.isAlive(process));
+
+    Issue[] issues = cssAnalyzerBridgeServer.analyze(new Request("/absolute/path/file.css", null, CONFIG_FILE));
+    assertThat(issues).hasSize(1);
+    assertThat(process.port).isNotEqualTo(formerPort);
+  }
+
+  @Test
+  public void should_restart_process_dying_during_batch() throws Exception {
+    for (String transport : Arrays.asList("http", "framed")) {
+      logTester.clear();
+      cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+      context.setSettings(new MapSettings().setProperty("sonar.css.node.transport", transport));
+      cssAnalyzerBridgeServer.startServerLazily(context);
+      ServerProcess process = cssAnalyzerBridgeServer.processes().get(0);
+      int formerPort = process.port;
+
+      // mock server exits after answering for file.css
+      Map<String, Issue[]> issues = cssAnalyzerBridgeServer.analyzeBatch(Arrays.asList(
+        new Request("/absolute/path/file.css", null, CONFIG_FILE),
+        new Request("/absolute/path/exit-during-batch.css", null, CONFIG_FILE),
+        new Request("/absolute/path/empty.css", null, CONFIG_FILE)));
+      assertThat(issues).containsOnlyKeys("/absolute/path/file.css");
+      assertThat(logTester.logs(WARN)).contains("css-bundle server #0 at port " + formerPort + " is not answering, restarting it");
+
+      assertThat(process.port).isNotEqualTo(formerPort);
+      assertThat(cssAnalyzerBridgeServer.analyze(new Request("/absolute/path/exit-during-batch.css", null, CONFIG_FILE))).hasSize(1);
+      cssAnalyzerBridgeServer.stop();
+    }
+  }
+
+  @Test
+  public void should_get_answer_from_unix_socket_server() throws Exception {
+    assumeTrue(UnixSocketTransport.isSupported(context.fileSystem().workDir().toPath()));
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    context.setSettings(new MapSettings().setProperty("sonar.css.node.transport", "unix"));
+    cssAnalyzerBridgeServer.startServerLazily(context);
+
+    ServerProcess process = cssAnalyzerBridgeServer.processes().get(0);
+    assertThat(process.socketPath.getParent()).isEqualTo(context.fileSystem().workDir().toPath().toAbsolutePath());
+    assertThat(process.port).isZero();
+    assertThat(logTester.logs(DEBUG)).contains("Starting Node.js process to start css-bundle server at socket " + process.socketPath);
+
+    Issue[] issues = cssAnalyzerBridgeServer.analyze(new Request("/absolute/path/file.css", null, CONFIG_FILE));
+    assertThat(issues).extracting(issue -> issue.text).containsExactly("Unexpected empty block");
+
+    cssAnalyzerBridgeServer.stop();
+    assertThat(cssAnalyzerBridgeServer.isAlive()).isFalse();
+  }
+
+  @Test
+  public void should_use_tcp_when_unix_socket_path_is_too_long() throws Exception {
+    Path workDir = tempFolder.newDir().toPath().resolve(String.join("", Collections.nCopies(100, "d")));
+    context.fileSystem().setWorkDir(workDir);
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    context.setSettings(new MapSettings().setProperty("sonar.css.node.transport", "unix"));
+    cssAnalyzerBridgeServer.startServerLazily(context);
+
+    assertThat(logTester.logs(DEBUG)).contains("Unix domain sockets are not available, requests to css-bundle server will use TCP connections");
+    assertThat(cssAnalyzerBridgeServer.processes().get(0).socketPath).isNull();
+    assertThat(cssAnalyzerBridgeServer.analyze(new Request("/absolute/path/file.css", null, CONFIG_FILE))).hasSize(1);
+  }
+
+  @Test
+  public void should_register_config_in_all_processes() throws Exception {
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    context.setSettings(new MapSettings().setProperty("sonar.css.node.workers", 2));
+    cssAnalyzerBridgeServer.startServerLazily(context);
+
+    assertThat(cssAnalyzerBridgeServer.registerConfig(CONFIG_FILE)).isEqualTo("mock-config-handle");
+  }
+
+  @Test
+  public void should_register_config_with_framed_server() throws Exception {
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    context.setSettings(new MapSettings().setProperty("sonar.css.node.transport", "framed"));
+    cssAnalyzerBridgeServer.startServerLazily(context);
+
+    assertThat(cssAnalyzerBridgeServer.registerConfig(CONFIG_FILE)).isEqualTo("mock-config-handle");
+  }
+
+  @Test
+  public void should_fail_to_register_config_when_server_fails() throws Exception {
+    // fails on any request but "status"
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer("failedClose.js");
+    cssAnalyzerBridgeServer.startServerLazily(context);
+
+    assertThatThrownBy(() -> cssAnalyzerBridgeServer.registerConfig(CONFIG_FILE)).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  public void should_use_http_for_unknown_transport() throws Exception {
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    context.setSettings(new MapSettings().setProperty("sonar.css.node.transport", "pigeon"));
+    cssAnalyzerBridgeServer.startServerLazily(context);
+
+    assertThat(logTester.logs(WARN)).contains("Unknown value 'pigeon' for property sonar.css.node.transport, requests to css-bundle server will use HTTP");
+    assertThat(cssAnalyzerBridgeServer.analyze(new Request("/absolute/path/file.css", null, CONFIG_FILE))).hasSize(1);
+  }
+
+  @Test
+  public void should_start_several_processes() throws Exception {
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    context.setSettings(new MapSettings().setProperty("sonar.css.node.workers", 3));
+    cssAnalyzerBridgeServer.startServerLazily(context);
+
+    assertThat(cssAnalyzerBridgeServer.processes()).hasSize(3);
+    assertThat(cssAnalyzerBridgeServer.processes()).extracting(process -> process.port).doesNotHaveDuplicates();
+    assertThat(logTester.logs(DEBUG).stream().filter(s -> s.startsWith("Starting Node.js process to start css-bundle server at port"))).hasSize(3);
+
+    for (int i = 0; i < 6; i++) {
+      Issue[] issues = cssAnalyzerBridgeServer.analyze(new Request("/absolute/path/file.css", null, CONFIG_FILE));
+      assertThat(issues).hasSize(1);
+    }
+    assertThat(cssAnalyzerBridgeServer.processes()).allMatch(process -> process.pendingRequests.get() == 0);
+  }
+
+  @Test
+  public void should_size_processes_from_cores() {
+    assertThat(CssAnalyzerBridgeServer.workers(new MapSettings().asConfig(), 8)).isEqualTo(1);
+    assertThat(CssAnalyzerBridgeServer.workers(new MapSettings().setProperty("sonar.css.node.workers", 3).asConfig(), 8)).isEqualTo(3);
+    assertThat(CssAnalyzerBridgeServer.workers(new MapSettings().setProperty("sonar.css.node.workers", 0).asConfig(), 8)).isEqualTo(8);
+    assertThat(CssAnalyzerBridgeServer.workers(new MapSettings().setProperty("sonar.css.node.workers", -1).asConfig(), 8)).isEqualTo(8);
+  }
+
+  @Test
+  public void should_restart_dead_process() throws Exception {
+    cssAnalyzerBridgeServer = createCssAnalyzerBridgeServer();
+    context.setSettings(new MapSettings().setProperty("sonar.css.node.workers", 2));
+    cssAnalyzerBridgeServer.startServerLazily(context);
+    ServerProcess process = cssAnalyzerBridgeServer.processes().get(0);
+    int formerPort = process.port;
+
+    // mock server dies on "close" request
+    cssAnalyzerBridgeServer.callClose(process);
+    await().atMost(5, TimeUnit.SECONDS).until(() -> !cssAnalyzerBridgeServer.isAlive(process));
+
+    Issue[] issues = cssAnalyzerBridgeServer.analyze(new Request("/absolute/path/file.css", null, CONFIG_FILE));
+    assertThat(issues).hasSize(1);
+    assertThat(process.port).isNotEqualTo(formerPort);
+    assertThat(logTester.logs(WARN)).contains("css-bundle server #0 at port " + formerPort + " is not answering, restarting it");
   }
 
   @Test
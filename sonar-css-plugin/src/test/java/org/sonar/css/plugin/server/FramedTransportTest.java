@@ -0,0 +1,257 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.css.plugin.server.Transport.ServerResponse;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class FramedTransportTest {
+
+  private final FramedTransport transport = new FramedTransport(1, "127.0.0.1");
+  private final ServerProcess process = new ServerProcess(0);
+  private final AtomicInteger connections = new AtomicInteger();
+  private final List<String> requests = new ArrayList<>();
+  private volatile boolean compactIssues;
+  private ServerSocket serverSocket;
+
+  @Before
+  public void setUp() throws IOException {
+    serverSocket = new ServerSocket(0);
+    process.port = serverSocket.getLocalPort();
+    Thread thread = new Thread(this::acceptConnections);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    transport.reset(process);
+    serverSocket.close();
+  }
+
+  @Test
+  public void should_read_response_made_of_several_frames() throws IOException {
+    assertThat(request("analyze", "{\"filePath\":\"\u00e9\"}")).isEqualTo("[\"{\\\"filePath\\\":\\\"\u00e9\\\"}\"]");
+    assertThat(requests).containsExactly("analyze {\"filePath\":\"\u00e9\"}");
+  }
+
+  @Test
+  public void should_reuse_connection_after_complete_response() throws IOException {
+    assertThat(transport.isAlive(process)).isTrue();
+    request("analyze", "a");
+    request("analyze", "b");
+    assertThat(connections.get()).isEqualTo(1);
+
+    transport.reset(process);
+    request("analyze", "c");
+    assertThat(connections.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_not_reuse_connection_opened_before_reset() throws IOException {
+    try (ServerResponse response = transport.send(process, "analyze", "a")) {
+      IOUtils.toString(response.reader());
+      // as when the process is restarted while a response is read
+      transport.reset(process);
+    }
+    request("analyze", "b");
+    assertThat(connections.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_not_reuse_connection_after_partial_response() throws IOException {
+    try (ServerResponse response = transport.send(process, "analyze", "a")) {
+      assertThat(response.reader().read()).isEqualTo('[');
+    }
+    request("analyze", "b");
+    assertThat(connections.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_fail_when_connection_is_closed_during_response() throws IOException {
+    try (ServerResponse response = transport.send(process, "truncated", "")) {
+      Reader reader = response.reader();
+      assertThatThrownBy(() -> IOUtils.toString(reader)).isInstanceOf(EOFException.class);
+    }
+  }
+
+  @Test
+  public void should_read_issues_in_compact_format_when_server_supports_it() throws IOException {
+    compactIssues = true;
+    for (String message : Arrays.asList("a", "b", "a")) {
+      try (ServerResponse response = transport.send(process, "analyze", message)) {
+        CompactIssueReader issueReader = response.compactIssues();
+        assertThat(issueReader).isNotNull();
+        assertThat(issueReader.readIssues()).extracting(issue -> issue.line, issue -> issue.rule, issue -> issue.text)
+          .containsExactly(tuple(1, "rule", message));
+      }
+    }
+    try (ServerResponse response = transport.send(process, "status", "")) {
+      assertThat(response.compactIssues()).isNull();
+      assertThat(IOUtils.toString(response.reader())).isEqualTo("OK!");
+    }
+    assertThat(connections.get()).isEqualTo(1);
+    assertThat(requests).containsExactly("analyze a", "analyze b", "analyze a");
+  }
+
+  @Test
+  public void should_read_issues_in_json_when_server_does_not_support_compact_format() throws IOException {
+    try (ServerResponse response = transport.send(process, "analyze", "a")) {
+      assertThat(response.compactIssues()).isNull();
+      assertThat(IOUtils.toString(response.reader())).isEqualTo("[\"a\"]");
+    }
+  }
+
+  @Test
+  public void should_not_be_alive_without_server() throws IOException {
+    serverSocket.close();
+    transport.reset(process);
+    assertThat(transport.isAlive(process)).isFalse();
+    assertThatThrownBy(() -> transport.send(process, "analyze", "a")).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  public void should_pass_port_host_and_transport_to_server() {
+    assertThat(transport.scriptArgs(process)).containsExactly(String.valueOf(process.port), "127.0.0.1", "framed");
+  }
+
+  private String request(String endpoint, String json) throws IOException {
+    try (ServerResponse response = transport.send(process, endpoint, json)) {
+      return IOUtils.toString(response.reader());
+    }
+  }
+
+  private void acceptConnections() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        connections.incrementAndGet();
+        Thread thread = new Thread(() -> answer(socket));
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e) {
+        // server socket is closed
+      }
+    }
+  }
+
+  /**
+   * Answers "OK!" to "status", and the JSON body as a JSON array of one string, sent in several frames, to other requests.
+   * When compact format is accepted, answers with one issue having the body as message.
+   */
+  private void answer(Socket socket) {
+    try (Socket s = socket) {
+      DataInputStream input = new DataInputStream(s.getInputStream());
+      DataOutputStream output = new DataOutputStream(s.getOutputStream());
+      List<String> strings = new ArrayList<>();
+      boolean compact = false;
+      while (true) {
+        String endpoint = readFrame(input);
+        String body = readFrame(input);
+        if ("truncated".equals(endpoint)) {
+          output.writeInt(10);
+          output.write("[]".getBytes(UTF_8));
+          output.flush();
+          return;
+        }
+        if ("status".equals(endpoint)) {
+          writeFrame(output, "OK!");
+        } else if ("format".equals(endpoint)) {
+          if (compactIssues) {
+            compact = true;
+            writeFrame(output, body);
+          }
+        } else if (compact) {
+          synchronized (requests) {
+            requests.add(endpoint + " " + body);
+          }
+          writeCompactIssue(output, strings, body);
+        } else {
+          synchronized (requests) {
+            requests.add(endpoint + " " + body);
+          }
+          writeFrame(output, "[");
+          writeFrame(output, "\"" + body.replace("\"", "\\\"") + "\"");
+          writeFrame(output, "]");
+        }
+        writeFrame(output, "");
+        output.flush();
+      }
+    } catch (IOException e) {
+      // connection closed by the client
+    }
+  }
+
+  /**
+   * Writes one issue on line 1, with the rule key and the message added to the string table the first time
+   */
+  private static void writeCompactIssue(DataOutputStream output, List<String> strings, String message) throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    // number of issues plus one, then the line
+    content.write(2);
+    content.write(1);
+    for (String value : Arrays.asList("rule", message)) {
+      int index = strings.indexOf(value);
+      if (index >= 0) {
+        content.write(index + 2);
+      } else {
+        strings.add(value);
+        byte[] bytes = value.getBytes(UTF_8);
+        content.write(1);
+        content.write(bytes.length);
+        content.write(bytes);
+      }
+    }
+    output.writeInt(content.size());
+    content.writeTo(output);
+  }
+
+  private static String readFrame(DataInputStream input) throws IOException {
+    byte[] content = new byte[input.readInt()];
+    input.readFully(content);
+    return new String(content, UTF_8);
+  }
+
+  private static void writeFrame(DataOutputStream output, String content) throws IOException {
+    byte[] bytes = content.getBytes(UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+}
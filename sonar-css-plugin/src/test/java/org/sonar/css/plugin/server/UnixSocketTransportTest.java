@@ -0,0 +1,73 @@
+/*
+ * SonarCSS
+ * Copyright (C) 2018-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.css.plugin.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+
+public class UnixSocketTransportTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void should_listen_on_socket_in_directory() throws IOException {
+    Path socketDir = tempFolder.newFolder().toPath();
+    Path staleSocket = Files.createFile(socketDir.resolve("css-bundle-3.sock"));
+    UnixSocketTransport transport = new UnixSocketTransport(1, "127.0.0.1", socketDir);
+    ServerProcess process = new ServerProcess(3);
+    process.port = 1234;
+
+    transport.prepare(process);
+
+    assertThat(process.port).isZero();
+    assertThat(process.socketPath).isEqualTo(staleSocket.toAbsolutePath());
+    assertThat(process.address()).isEqualTo("socket " + staleSocket.toAbsolutePath());
+    assertThat(staleSocket).doesNotExist();
+    assertThat(transport.scriptArgs(process)).containsExactly("0", "127.0.0.1", "unix", staleSocket.toAbsolutePath().toString());
+  }
+
+  @Test
+  public void should_not_be_supported_with_too_long_socket_path() {
+    Path socketDir = tempFolder.getRoot().toPath().resolve(String.join("", Collections.nCopies(100, "d")));
+    assertThat(UnixSocketTransport.isSupported(socketDir)).isFalse();
+  }
+
+  @Test
+  public void should_fail_to_connect_when_no_server() throws IOException {
+    Path socketDir = tempFolder.newFolder().toPath();
+    assumeTrue(UnixSocketTransport.isSupported(socketDir));
+    UnixSocketTransport transport = new UnixSocketTransport(1, "127.0.0.1", socketDir);
+    ServerProcess process = new ServerProcess(0);
+    transport.prepare(process);
+
+    assertThatThrownBy(() -> transport.send(process, "status", "")).isInstanceOf(IOException.class);
+    assertThat(transport.isAlive(process)).isFalse();
+  }
+}
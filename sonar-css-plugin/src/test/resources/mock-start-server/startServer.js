@@ -1,7 +1,67 @@
 #!/usr/bin/env node
 
 const http = require('http');
+const net = require('net');
 const port = process.argv[2];
+// same handle for all configurations, as for a single configuration registered in all processes
+const CONFIG_HANDLE = 'mock-config-handle';
+
+// returns issues array, null when the analysis fails, or string to send as a raw response
+const analyze = (analysisRequest) => {
+  const fileName = analysisRequest.filePath.replace(/.*[\/\\]/g,"");
+  const fileContent = analysisRequest.fileContent;
+  switch (fileName) {
+    case "file.css":
+    case "file.web":
+    case "file.php":
+    case "file.vue":
+    case "file.js": // to test that we will not save this issue even if it's provided by response
+    case "missing-from-batch.css":
+    case "exit-during-batch.css":
+      return [
+        {line: 2, rule: "block-no-empty", text: "Unexpected empty block"}
+      ];
+    case "file-with-rule-id-message.css":
+      return [
+        {line: 2, rule: "color-no-invalid-hex", text: "some message (color-no-invalid-hex)"}
+      ];
+    case "empty.css":
+      return [];
+    case "analysis-error.css":
+      return null;
+    case "syntax-error.css":
+    case "syntax-error.web":
+      return [
+        {line: 2, rule: "CssSyntaxError", text: "Missed semicolon (CssSyntaxError)"}
+      ];
+    case "unknown-rule.css":
+      return [
+        {line: 2, rule: "unknown-rule-key", text: "some message"}
+      ];
+    case "invalid-json-response.css":
+      return "[";
+    case "copy-file-content-into-issue-message.css":
+      return [
+        {line: 1, rule: "block-no-empty", text: "" + fileContent}
+      ];
+    case "copy-config-handle-into-issue-message.css":
+      return [
+        {line: 1, rule: "block-no-empty", text: "" + analysisRequest.configHandle}
+      ];
+    case "copy-file-encoding-into-issue-message.css":
+      return [
+        {line: 1, rule: "block-no-empty", text: "" + analysisRequest.fileEncoding}
+      ];
+    default:
+      throw "Unexpected fileName: " + fileName;
+  }
+};
+
+// as when the server dies between two files of a batch
+const isInBatchResponse = (analysisRequest) => !analysisRequest.filePath.endsWith("missing-from-batch.css");
+
+// the process exits while answering a batch, after the issues of the former files are sent
+const exitsDuringBatch = (analysisRequest) => analysisRequest.filePath.endsWith("exit-during-batch.css");
 
 const requestHandler = (request, response) => {
   let data = [];
@@ -9,67 +69,92 @@ const requestHandler = (request, response) => {
     data.push(chunk);
   });
   request.on('end', () => {
-    let fileName = null;
-    let fileContent = null;
-    if (data.length > 0) {
-      const analysisRequest = JSON.parse(data.join());
-      fileName = analysisRequest.filePath.replace(/.*[\/\\]/g,"");
-      fileContent = analysisRequest.fileContent;
-    }
     if (request.url === '/status') {
       response.writeHead(200, { 'Content-Type': 'text/plain' });
       response.end('OK!');
+    } else if (request.url === '/config') {
+      response.end(CONFIG_HANDLE);
+    } else if (request.url === '/analyze-batch') {
+      // one JSON line per file
+      for (const analysisRequest of JSON.parse(data.join()).filter(isInBatchResponse)) {
+        if (exitsDuringBatch(analysisRequest)) {
+          response.write('', () => process.exit(1));
+          return;
+        }
+        const issues = analyze(analysisRequest);
+        if (typeof issues === "string") {
+          response.write(issues + "\n");
+        } else {
+          response.write(JSON.stringify({ filePath: analysisRequest.filePath, issues }) + "\n");
+        }
+      }
+      response.end();
     } else {
-      switch (fileName) {
-        case "file.css":
-        case "file.web":
-        case "file.php":
-        case "file.vue":
-        case "file.js": // to test that we will not save this issue even if it's provided by response
-          response.end(JSON.stringify([
-            {line: 2, rule: "block-no-empty", text: "Unexpected empty block"}
-          ]));
-          break;
-        case "file-with-rule-id-message.css":
-          response.end(JSON.stringify([
-            {line: 2, rule: "color-no-invalid-hex", text: "some message (color-no-invalid-hex)"}
-          ]));
-          break;
-        case "empty.css":
-          response.end(JSON.stringify([]));
-          break;
-        case "syntax-error.css":
-        case "syntax-error.web":
-          response.end(JSON.stringify([
-            {line: 2, rule: "CssSyntaxError", text: "Missed semicolon (CssSyntaxError)"}
-          ]));
-          break;
-        case "unknown-rule.css":
-          response.end(JSON.stringify([
-            {line: 2, rule: "unknown-rule-key", text: "some message"}
-          ]));
-          break;
-        case "invalid-json-response.css":
-          response.end("[");
-          break;
-        case "copy-file-content-into-issue-message.css":
-          response.end(JSON.stringify([
-            {line: 1, rule: "block-no-empty", text: "" + fileContent}
-          ]));
-          break;
-        default:
-          throw "Unexpected fileName: " + fileName;
+      const analysisRequest = data.length > 0 ? JSON.parse(data.join()) : { filePath: "" };
+      const issues = analyze(analysisRequest);
+      response.end(typeof issues === "string" ? issues : JSON.stringify(issues));
+    }
+  });
+};
+
+// frame: content length on 4 bytes, then content
+const writeFrame = (socket, content) => {
+  const payload = Buffer.from(content, 'utf8');
+  const header = Buffer.alloc(4);
+  header.writeUInt32BE(payload.length, 0);
+  socket.write(Buffer.concat([header, payload]));
+};
+
+// request: endpoint frame and body frame, response: frames ended by an empty frame
+const framedConnectionHandler = (socket) => {
+  let buffer = Buffer.alloc(0);
+  let frames = [];
+  socket.on('error', () => {});
+  socket.on('data', chunk => {
+    buffer = Buffer.concat([buffer, chunk]);
+    while (buffer.length >= 4 && buffer.length >= 4 + buffer.readUInt32BE(0)) {
+      const end = 4 + buffer.readUInt32BE(0);
+      frames.push(buffer.toString('utf8', 4, end));
+      buffer = buffer.slice(end);
+      if (frames.length === 2) {
+        const [endpoint, body] = frames;
+        frames = [];
+        if (endpoint === 'status') {
+          writeFrame(socket, 'OK!');
+        } else if (endpoint === 'config') {
+          writeFrame(socket, CONFIG_HANDLE);
+        } else if (endpoint === 'analyze-batch') {
+          for (const analysisRequest of JSON.parse(body).filter(isInBatchResponse)) {
+            if (exitsDuringBatch(analysisRequest)) {
+              // the connection is closed by the exit, once the process is dead
+              process.exit(1);
+            }
+            const issues = analyze(analysisRequest);
+            writeFrame(socket, typeof issues === "string" ? issues + "\n" : JSON.stringify({ filePath: analysisRequest.filePath, issues }) + "\n");
+          }
+        } else if (endpoint === 'analyze') {
+          const issues = analyze(JSON.parse(body));
+          writeFrame(socket, typeof issues === "string" ? issues : JSON.stringify(issues));
+        }
+        writeFrame(socket, '');
+        if (endpoint === 'close') {
+          // like the HTTP server, dies on "close" request
+          socket.end(() => process.exit(0));
+        }
       }
     }
   });
 };
 
-const server = http.createServer(requestHandler);
+const framed = process.argv[4] === 'framed' || process.argv[4] === 'unix';
+const server = framed ? net.createServer(framedConnectionHandler) : http.createServer(requestHandler);
+// Unix domain socket path, or port
+const address = process.argv[4] === 'unix' ? process.argv[5] : port;
 
-server.listen(port, (err) => {
+server.listen(address, (err) => {
   if (err) {
     return console.log('something bad happened', err)
   }
 
-  console.log(`server is listening on ${port}`)
+  console.log(`server is listening on ${address}`)
 });